@@ -1,9 +1,41 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.time.DayOfWeek;
 import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 
 
 /*
@@ -20,9 +52,10 @@ Parking ticket
 
 abstract class ParkingSpot {
     private String parkingSpotId;
-    private boolean isFree;
+    private AtomicBoolean isFree = new AtomicBoolean(true);
     private ParkingSpotType parkingSpotType;
     private String assignedVehicleId;
+    private int occupancyIndex = -1;
 
     public ParkingSpot(String parkingSpotId, ParkingSpotType parkingSpotType) {
         this.parkingSpotId = parkingSpotId;
@@ -33,9 +66,17 @@ abstract class ParkingSpot {
         this.assignedVehicleId = vehicleId;
     }
 
+    public boolean tryOccupy() {
+        return isFree.compareAndSet(true, false);
+    }
+
+    public boolean isFree() {
+        return isFree.get();
+    }
+
     public void freeSpot() {
-        this.isFree = true;
         this.assignedVehicleId = null;
+        this.isFree.set(true);
     }
 }
 
@@ -60,6 +101,30 @@ class MotorBikeParkingSpot extends ParkingSpot {
     }
 }
 
+class LargeParkingSpot extends ParkingSpot {
+    public LargeParkingSpot(String id) {
+        super(id, ParkingSpotType.LARGE);
+    }
+}
+
+class ElectricParkingSpot extends ParkingSpot {
+    public ElectricParkingSpot(String id) {
+        super(id, ParkingSpotType.ELECTRIC);
+    }
+}
+
+class EBikeParkingSpot extends ParkingSpot {
+    public EBikeParkingSpot(String id) {
+        super(id, ParkingSpotType.EBIKE);
+    }
+}
+
+class AbledParkingSpot extends ParkingSpot {
+    public AbledParkingSpot(String id) {
+        super(id, ParkingSpotType.ABLED);
+    }
+}
+
 abstract class Vehicle {
     private String licenseNumber;
     private final VehicleType type;
@@ -86,79 +151,499 @@ class Car extends Vehicle {
     }
 }
 
+class Truck extends Vehicle {
+    public Truck(String licenseNumber) {
+        super(licenseNumber, VehicleType.TRUCK);
+    }
+}
+
+class ElectricCar extends Vehicle {
+    public ElectricCar(String licenseNumber) {
+        super(licenseNumber, VehicleType.ELECTRIC);
+    }
+}
+
+class Van extends Vehicle {
+    public Van(String licenseNumber) {
+        super(licenseNumber, VehicleType.VAN);
+    }
+}
+
+class MotorBike extends Vehicle {
+    public MotorBike(String licenseNumber) {
+        super(licenseNumber, VehicleType.MOTORBIKE);
+    }
+}
+
+class EBike extends Vehicle {
+    public EBike(String licenseNumber) {
+        super(licenseNumber, VehicleType.EBIKE);
+    }
+}
+
 class ParkingFloor {
 
+    public static final int DEFAULT_FLOOR_CAPACITY = 4096;
+
     private String floorId;
 
-    private Map<ParkingSpotType, Deque<ParkingSpot>> parkingSpots = new HashMap<>();
-    private Map<String, ParkingSpot> usedParkingSpots = new HashMap<>();
+    private SpotAllocationStrategy spotAllocationStrategy;
+    // free count per type never exceeds the spots the strategy holds: release before increment,
+    // decrement before allocate
+    private Map<ParkingSpotType, AtomicInteger> freeSpotCounts = new EnumMap<>(ParkingSpotType.class);
+    private Map<ParkingSpotType, AtomicInteger> totalSpotCounts = new EnumMap<>(ParkingSpotType.class);
+    private AtomicInteger totalFreeSpots = new AtomicInteger();
+    private Map<String, ParkingSpot> usedParkingSpots = new ConcurrentHashMap<>();
+    private Map<String, ParkingSpot> allParkingSpots = new ConcurrentHashMap<>();
+
+    // one bit per spot on the floor, set while occupied
+    private ConcurrentBitSet occupiedSpots;
+    private AtomicInteger nextOccupancyIndex = new AtomicInteger();
 
     public ParkingFloor(String id) {
+        this(id, new FreeListAllocationStrategy());
+    }
+
+    public ParkingFloor(String id, SpotAllocationStrategy spotAllocationStrategy) {
+        this(id, spotAllocationStrategy, DEFAULT_FLOOR_CAPACITY);
+    }
+
+    public ParkingFloor(String id, SpotAllocationStrategy spotAllocationStrategy, int capacity) {
         this.floorId = id;
-        parkingSpots.put(ABLED, new ConcurrentLinkedDeque());
-        parkingSpots.put(CAR, new ConcurrentLinkedDeque());
-        parkingSpots.put(LARGE, new ConcurrentLinkedDeque());
-        parkingSpots.put(MOTORBIKE, new ConcurrentLinkedDeque());
-        parkingSpots.put(ELECTRIC, new ConcurrentLinkedDeque());
+        this.spotAllocationStrategy = spotAllocationStrategy;
+        this.occupiedSpots = new ConcurrentBitSet(capacity);
+        for (ParkingSpotType parkingSpotType : ParkingSpotType.values()) {
+            freeSpotCounts.put(parkingSpotType, new AtomicInteger());
+            totalSpotCounts.put(parkingSpotType, new AtomicInteger());
+        }
+    }
+
+    public void addParkingSpot(ParkingSpot parkingSpot) {
+        int occupancyIndex = nextOccupancyIndex.getAndIncrement();
+        if (occupancyIndex >= occupiedSpots.size())
+            throw new IllegalStateException("Parking floor " + floorId + " is at capacity");
+        parkingSpot.setOccupancyIndex(occupancyIndex);
+        allParkingSpots.put(parkingSpot.getParkingSpotId(), parkingSpot);
+        totalSpotCounts.get(parkingSpot.getParkingSpotType()).incrementAndGet();
+        spotAllocationStrategy.addSpot(parkingSpot);
+        freeSpotCounts.get(parkingSpot.getParkingSpotType()).incrementAndGet();
+        totalFreeSpots.incrementAndGet();
     }
 
     public boolean isFloorFull() {
-        BitSet fullBitSet = new BitSet();
-        int bitIndex = 0;
-        for (Map.Entry<ParkingSpotType, Deque<ParkingSpot>> entry : parkingSpots.entrySet()) {
-            if (entry.getValue().size() == 0) {
-                fullBitSet.set(bitIndex++);
-            } else {
-                break;
-            }
-        }
-        return fullBitSet.cardinality() == fullBitSet.size();
+        return totalFreeSpots.get() == 0;
     }
 
     public static ParkingSpotType getSpotTypeForVehicle(VehicleType vehicleType) {
-        switch (vehicleType) {
-            case CAR:
-                return CAR;
-            case ELECTRIC:
-                return ELECTRIC;
-            case MOTORBIKE:
-                return MOTORBIKE;
-            default:
-                return LARGE;
-        }
+        return SpotCompatibility.getCompatibleSpotTypes(vehicleType).get(0);
     }
 
     public boolean canPark(VehicleType vehicleType) {
-        return canPark(getSpotTypeForVehicle(vehicleType));
+        for (ParkingSpotType parkingSpotType : SpotCompatibility.getCompatibleSpotTypes(vehicleType)) {
+            if (canPark(parkingSpotType))
+                return true;
+        }
+        return false;
+    }
+
+    public ParkingSpot getSpot(VehicleType vehicleType) {
+        return getSpot(vehicleType, null);
+    }
+
+    // one pass over the compatible types in preference order, each attempt a single CAS
+    public ParkingSpot getSpot(VehicleType vehicleType, String entrancePanelId) {
+        for (ParkingSpotType parkingSpotType : SpotCompatibility.getCompatibleSpotTypes(vehicleType)) {
+            ParkingSpot parkingSpot = getSpot(parkingSpotType, entrancePanelId);
+            if (parkingSpot != null)
+                return parkingSpot;
+        }
+        return null;
+    }
+
+    public ParkingSpot getSpot(ParkingSpotType parkingSpotType, String entrancePanelId) {
+        return getSpot(parkingSpotType, entrancePanelId, 0);
     }
 
-    public synchronized ParkingSpot getSpot(VehicleType vehicleType) {
-        if (!canPark(getSpotTypeForVehicle(vehicleType)))
+    // takes a spot only while more than `held` of the type are free, in the same CAS as the count
+    public ParkingSpot getSpot(ParkingSpotType parkingSpotType, String entrancePanelId, int held) {
+        if (!reserveFreeSpot(parkingSpotType, held))
             return null;
 
-        ParkingSpotType parkingSpotType = getSpotTypeForVehicle(vehicleType);
-        ParkingSpot parkingSpot = parkingSpots.get(parkingSpotType)
-                .poll();
+        totalFreeSpots.decrementAndGet();
+        ParkingSpot parkingSpot = spotAllocationStrategy.allocate(parkingSpotType, entrancePanelId);
+        occupiedSpots.set(parkingSpot.getOccupancyIndex());
 
         usedParkingSpots.put(parkingSpot.getParkingSpotId(), parkingSpot);
         return parkingSpot;
     }
 
+    public ParkingSpot occupySpot(String parkingSpotId) {
+        ParkingSpot parkingSpot = allParkingSpots.get(parkingSpotId);
+        if (parkingSpot == null || !reserveFreeSpot(parkingSpot.getParkingSpotType(), 0))
+            return null;
+        if (!spotAllocationStrategy.claim(parkingSpot)) {
+            freeSpotCounts.get(parkingSpot.getParkingSpotType()).incrementAndGet();
+            return null;
+        }
+        totalFreeSpots.decrementAndGet();
+        occupiedSpots.set(parkingSpot.getOccupancyIndex());
+        usedParkingSpots.put(parkingSpotId, parkingSpot);
+        return parkingSpot;
+    }
+
+    public boolean hasSpot(String parkingSpotId) {
+        return allParkingSpots.containsKey(parkingSpotId);
+    }
+
+    public ParkingSpot getParkingSpot(String parkingSpotId) {
+        return allParkingSpots.get(parkingSpotId);
+    }
+
     public ParkingSpot vacateSpot(String parkingSpotId) {
         ParkingSpot parkingSpot = usedParkingSpots.remove(parkingSpotId);
         if (parkingSpot != null) {
+            occupiedSpots.clear(parkingSpot.getOccupancyIndex());
             parkingSpot.freeSpot();
-            parkingSpots.get(parkingSpot.getParkingSpotType())
-                    .addFirst(parkingSpot);
+            spotAllocationStrategy.release(parkingSpot);
+            freeSpotCounts.get(parkingSpot.getParkingSpotType()).incrementAndGet();
+            totalFreeSpots.incrementAndGet();
             return parkingSpot;
         }
         return null;
     }
 
     public boolean canPark(ParkingSpotType parkingSpotType) {
-        return parkingSpots.get(parkingSpotType).size() > 0;
+        return freeSpotCounts.get(parkingSpotType).get() > 0;
+    }
+
+    public int getFreeSpotCount(ParkingSpotType parkingSpotType) {
+        return freeSpotCounts.get(parkingSpotType).get();
+    }
+
+    public int getTotalSpotCount(ParkingSpotType parkingSpotType) {
+        return totalSpotCounts.get(parkingSpotType).get();
+    }
+
+    public int getOccupiedSpotCount(ParkingSpotType parkingSpotType) {
+        return totalSpotCounts.get(parkingSpotType).get() - freeSpotCounts.get(parkingSpotType).get();
+    }
+
+    public boolean isOccupied(ParkingSpot parkingSpot) {
+        return occupiedSpots.get(parkingSpot.getOccupancyIndex());
+    }
+
+    private boolean reserveFreeSpot(ParkingSpotType parkingSpotType, int held) {
+        AtomicInteger freeSpotCount = freeSpotCounts.get(parkingSpotType);
+        int free;
+        do {
+            free = freeSpotCount.get();
+            if (free <= held)
+                return false;
+        } while (!freeSpotCount.compareAndSet(free, free - 1));
+        return true;
+    }
+
+}
+
+/*
+Which spot types a vehicle may use, best fit first. A vehicle only falls back to a bigger
+spot when every better fitting one in the lot is taken.
+ */
+class SpotCompatibility {
+    private static final Map<VehicleType, List<ParkingSpotType>> COMPATIBLE_SPOT_TYPES = new EnumMap<>(VehicleType.class);
+
+    static {
+        COMPATIBLE_SPOT_TYPES.put(VehicleType.EBIKE,
+                List.of(ParkingSpotType.EBIKE, ParkingSpotType.MOTORBIKE, ParkingSpotType.CAR));
+        COMPATIBLE_SPOT_TYPES.put(VehicleType.MOTORBIKE,
+                List.of(ParkingSpotType.MOTORBIKE, ParkingSpotType.CAR));
+        COMPATIBLE_SPOT_TYPES.put(VehicleType.CAR,
+                List.of(ParkingSpotType.CAR, ParkingSpotType.LARGE));
+        COMPATIBLE_SPOT_TYPES.put(VehicleType.ELECTRIC,
+                List.of(ParkingSpotType.ELECTRIC, ParkingSpotType.CAR, ParkingSpotType.LARGE));
+        COMPATIBLE_SPOT_TYPES.put(VehicleType.VAN, List.of(ParkingSpotType.LARGE));
+        COMPATIBLE_SPOT_TYPES.put(VehicleType.TRUCK, List.of(ParkingSpotType.LARGE));
+    }
+
+    public static List<ParkingSpotType> getCompatibleSpotTypes(VehicleType vehicleType) {
+        return COMPATIBLE_SPOT_TYPES.get(vehicleType);
+    }
+}
+
+interface SpotAllocationStrategy {
+
+    void addSpot(ParkingSpot parkingSpot);
+
+    // only called after the floor has reserved a free spot of this type
+    ParkingSpot allocate(ParkingSpotType parkingSpotType, String entrancePanelId);
+
+    // takes a specific free spot out of circulation, used when replaying tickets on startup
+    boolean claim(ParkingSpot parkingSpot);
+
+    void release(ParkingSpot parkingSpot);
+}
+
+class FreeListAllocationStrategy implements SpotAllocationStrategy {
+
+    private Map<ParkingSpotType, Deque<ParkingSpot>> parkingSpots = new EnumMap<>(ParkingSpotType.class);
+
+    public FreeListAllocationStrategy() {
+        for (ParkingSpotType parkingSpotType : ParkingSpotType.values()) {
+            parkingSpots.put(parkingSpotType, new ConcurrentLinkedDeque<>());
+        }
+    }
+
+    @Override
+    public void addSpot(ParkingSpot parkingSpot) {
+        parkingSpots.get(parkingSpot.getParkingSpotType()).addLast(parkingSpot);
+    }
+
+    @Override
+    public ParkingSpot allocate(ParkingSpotType parkingSpotType, String entrancePanelId) {
+        ParkingSpot parkingSpot = parkingSpots.get(parkingSpotType).poll();
+        parkingSpot.tryOccupy();
+        return parkingSpot;
+    }
+
+    @Override
+    public boolean claim(ParkingSpot parkingSpot) {
+        if (!parkingSpots.get(parkingSpot.getParkingSpotType()).remove(parkingSpot))
+            return false;
+        parkingSpot.tryOccupy();
+        return true;
+    }
+
+    @Override
+    public void release(ParkingSpot parkingSpot) {
+        parkingSpots.get(parkingSpot.getParkingSpotType()).addFirst(parkingSpot);
+    }
+
+    public int getFreeSpotCount(ParkingSpotType parkingSpotType) {
+        return parkingSpots.get(parkingSpotType).size();
+    }
+}
+
+/*
+Each entrance ranks the floor's spots by distance once; a free bit per rank lets allocation
+jump to the nearest free spot with nextSetBit. The spot's own CAS is the source of truth,
+the bits are hints that are cleared eagerly on allocation and re-checked when a CAS loses.
+ */
+class NearestToEntranceAllocationStrategy implements SpotAllocationStrategy {
+
+    private static final String DEFAULT_ENTRANCE = "";
+
+    private Map<String, ToIntFunction<ParkingSpot>> entranceDistances = new ConcurrentHashMap<>();
+    private Map<ParkingSpotType, List<ParkingSpot>> spotsByType = new EnumMap<>(ParkingSpotType.class);
+    private Map<ParkingSpotType, SpotRanking> rankings = new ConcurrentHashMap<>();
+
+    public NearestToEntranceAllocationStrategy() {
+        for (ParkingSpotType parkingSpotType : ParkingSpotType.values()) {
+            spotsByType.put(parkingSpotType, new ArrayList<>());
+            rankings.put(parkingSpotType, new SpotRanking(new ArrayList<>(), entranceDistances));
+        }
+    }
+
+    public synchronized void registerEntrance(String entrancePanelId, ToIntFunction<ParkingSpot> distanceFromEntrance) {
+        entranceDistances.put(entrancePanelId, distanceFromEntrance);
+        for (ParkingSpotType parkingSpotType : ParkingSpotType.values()) {
+            rebuild(parkingSpotType);
+        }
+    }
+
+    @Override
+    public synchronized void addSpot(ParkingSpot parkingSpot) {
+        spotsByType.get(parkingSpot.getParkingSpotType()).add(parkingSpot);
+        rebuild(parkingSpot.getParkingSpotType());
+    }
+
+    @Override
+    public ParkingSpot allocate(ParkingSpotType parkingSpotType, String entrancePanelId) {
+        while (true) {
+            SpotRanking ranking = rankings.get(parkingSpotType);
+            EntranceRanking entranceRanking = ranking.forEntrance(entrancePanelId);
+            ConcurrentBitSet freeRanks = entranceRanking.freeRanks;
+            for (int rank = freeRanks.nextSetBit(0); rank >= 0; rank = freeRanks.nextSetBit(rank + 1)) {
+                int slot = entranceRanking.slotAtRank[rank];
+                ParkingSpot parkingSpot = ranking.spots[slot];
+                if (parkingSpot.tryOccupy()) {
+                    ranking.markOccupied(slot);
+                    return parkingSpot;
+                }
+                freeRanks.clear(rank);
+                if (parkingSpot.isFree())
+                    freeRanks.set(rank);
+            }
+            // reserved spot is being released on another thread or the ranking was just rebuilt
+            Thread.onSpinWait();
+        }
+    }
+
+    @Override
+    public boolean claim(ParkingSpot parkingSpot) {
+        if (!parkingSpot.tryOccupy())
+            return false;
+        SpotRanking ranking = rankings.get(parkingSpot.getParkingSpotType());
+        Integer slot = ranking.slotOfSpot.get(parkingSpot.getParkingSpotId());
+        if (slot != null)
+            ranking.markOccupied(slot);
+        return true;
+    }
+
+    @Override
+    public void release(ParkingSpot parkingSpot) {
+        SpotRanking ranking = rankings.get(parkingSpot.getParkingSpotType());
+        ranking.markFree(parkingSpot);
+        // a concurrent rebuild published after our read re-syncs from the spot itself
+        SpotRanking current = rankings.get(parkingSpot.getParkingSpotType());
+        if (current != ranking)
+            current.markFree(parkingSpot);
+    }
+
+    private void rebuild(ParkingSpotType parkingSpotType) {
+        SpotRanking ranking = new SpotRanking(spotsByType.get(parkingSpotType), entranceDistances);
+        rankings.put(parkingSpotType, ranking);
+        ranking.syncFreeBits();
+    }
+
+    private static class SpotRanking {
+        private final ParkingSpot[] spots;
+        private final Map<String, Integer> slotOfSpot = new HashMap<>();
+        private final Map<String, EntranceRanking> entranceRankings = new HashMap<>();
+        private final EntranceRanking defaultRanking;
+
+        SpotRanking(List<ParkingSpot> parkingSpots, Map<String, ToIntFunction<ParkingSpot>> entranceDistances) {
+            this.spots = parkingSpots.toArray(new ParkingSpot[0]);
+            for (int slot = 0; slot < spots.length; slot++) {
+                slotOfSpot.put(spots[slot].getParkingSpotId(), slot);
+            }
+            this.defaultRanking = new EntranceRanking(spots, parkingSpot -> slotOfSpot.get(parkingSpot.getParkingSpotId()));
+            entranceRankings.put(DEFAULT_ENTRANCE, defaultRanking);
+            for (Map.Entry<String, ToIntFunction<ParkingSpot>> entry : entranceDistances.entrySet()) {
+                entranceRankings.put(entry.getKey(), new EntranceRanking(spots, entry.getValue()));
+            }
+        }
+
+        EntranceRanking forEntrance(String entrancePanelId) {
+            if (entrancePanelId == null)
+                return defaultRanking;
+            return entranceRankings.getOrDefault(entrancePanelId, defaultRanking);
+        }
+
+        void markOccupied(int slot) {
+            for (EntranceRanking entranceRanking : entranceRankings.values()) {
+                int rank = entranceRanking.rankOfSlot[slot];
+                entranceRanking.freeRanks.clear(rank);
+                if (spots[slot].isFree())
+                    entranceRanking.freeRanks.set(rank);
+            }
+        }
+
+        void markFree(ParkingSpot parkingSpot) {
+            Integer slot = slotOfSpot.get(parkingSpot.getParkingSpotId());
+            if (slot == null)
+                return;
+            for (EntranceRanking entranceRanking : entranceRankings.values()) {
+                entranceRanking.freeRanks.set(entranceRanking.rankOfSlot[slot]);
+            }
+        }
+
+        void syncFreeBits() {
+            for (int slot = 0; slot < spots.length; slot++) {
+                if (spots[slot].isFree())
+                    markFree(spots[slot]);
+            }
+        }
+    }
+
+    private static class EntranceRanking {
+        private final int[] slotAtRank;
+        private final int[] rankOfSlot;
+        private final ConcurrentBitSet freeRanks;
+
+        EntranceRanking(ParkingSpot[] spots, ToIntFunction<ParkingSpot> distanceFromEntrance) {
+            Integer[] order = new Integer[spots.length];
+            for (int slot = 0; slot < spots.length; slot++) {
+                order[slot] = slot;
+            }
+            Arrays.sort(order, Comparator.comparingInt(slot -> distanceFromEntrance.applyAsInt(spots[slot])));
+            this.slotAtRank = new int[spots.length];
+            this.rankOfSlot = new int[spots.length];
+            for (int rank = 0; rank < order.length; rank++) {
+                slotAtRank[rank] = order[rank];
+                rankOfSlot[order[rank]] = rank;
+            }
+            this.freeRanks = new ConcurrentBitSet(spots.length);
+        }
+    }
+}
+
+class ConcurrentBitSet {
+    private final AtomicLongArray words;
+    private final int size;
+
+    public ConcurrentBitSet(int size) {
+        this.size = size;
+        this.words = new AtomicLongArray((size + 63) >>> 6);
+    }
+
+    public void set(int index) {
+        int wordIndex = index >>> 6;
+        long mask = 1L << index;
+        long word;
+        do {
+            word = words.get(wordIndex);
+            if ((word & mask) != 0)
+                return;
+        } while (!words.compareAndSet(wordIndex, word, word | mask));
+    }
+
+    public void clear(int index) {
+        int wordIndex = index >>> 6;
+        long mask = 1L << index;
+        long word;
+        do {
+            word = words.get(wordIndex);
+            if ((word & mask) == 0)
+                return;
+        } while (!words.compareAndSet(wordIndex, word, word & ~mask));
+    }
+
+    public boolean get(int index) {
+        return (words.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    public int nextSetBit(int fromIndex) {
+        if (fromIndex >= size)
+            return -1;
+        int wordIndex = fromIndex >>> 6;
+        long word = words.get(wordIndex) & (-1L << fromIndex);
+        while (true) {
+            if (word != 0) {
+                int index = (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+                return index < size ? index : -1;
+            }
+            if (++wordIndex == words.length())
+                return -1;
+            word = words.get(wordIndex);
+        }
+    }
+
+    public int cardinality() {
+        int count = 0;
+        for (int i = 0; i < words.length(); i++) {
+            count += Long.bitCount(words.get(i));
+        }
+        return count;
     }
 
+    public int size() {
+        return size;
+    }
+}
+
+// how many free spots of a type a floor keeps back from walk-ins at a given moment
+interface SpotHold {
+    int heldSpots(String floorId, ParkingSpotType parkingSpotType, LocalDateTime at);
 }
 
 class ParkingLot {
@@ -166,115 +651,880 @@ class ParkingLot {
     private Address address;
 
     private List<ParkingFloor> parkingFloors;
-    private List<EntrancePanel> entrancePanels;
-    private List<ExitPanel> exitPanels;
+    private Map<String, EntrancePanel> entrancePanels;
+    private Map<String, ExitPanel> exitPanels;
+
+    // floors that currently have at least one free spot of a type; a hint re-checked on every use
+    private Map<ParkingSpotType, Set<ParkingFloor>> floorsWithFreeSpots = new EnumMap<>(ParkingSpotType.class);
+    private Map<ParkingSpotType, LongAdder> availableSpots = new EnumMap<>(ParkingSpotType.class);
+    private Map<String, ParkingFloor> occupiedSpotFloors = new ConcurrentHashMap<>();
+    private Map<String, ParkingTicket> activeTickets = new ConcurrentHashMap<>();
+    private TicketEventLog ticketEventLog;
+    private volatile TariffSchedule tariffSchedule = TariffSchedule.flat(new HourlyCost());
+    // set by a ReservationManager so walk-ins leave the spots of bookings due now
+    private volatile SpotHold spotHold;
+
+    // gate requests for this lot run here, so a busy lot cannot starve the others
+    private ExecutorService gateExecutor;
+
+    public static final int DEFAULT_GATE_THREADS = 2;
+
+    public ParkingLot() {
+        this(UUID.randomUUID().toString());
+    }
 
-    public static ParkingLot INSTANCE = new ParkingLot();
+    public ParkingLot(String parkingLotId) {
+        this(parkingLotId, DEFAULT_GATE_THREADS);
+    }
 
-    private ParkingLot() {
-        this.parkingLotId = UUID.randomUUID().toString();
-        parkingFloors = new ArrayList<>();
-        entrancePanels = new ArrayList<>();
-        exitPanels = new ArrayList<>();
+    public ParkingLot(String parkingLotId, int gateThreads) {
+        this.parkingLotId = parkingLotId;
+        parkingFloors = new CopyOnWriteArrayList<>();
+        entrancePanels = new ConcurrentHashMap<>();
+        exitPanels = new ConcurrentHashMap<>();
+        AtomicInteger gateThreadNumber = new AtomicInteger();
+        gateExecutor = Executors.newFixedThreadPool(gateThreads, runnable -> {
+            Thread thread = new Thread(runnable, "parking-lot-" + parkingLotId + "-gate-" + gateThreadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (ParkingSpotType parkingSpotType : ParkingSpotType.values()) {
+            floorsWithFreeSpots.put(parkingSpotType, new ConcurrentSkipListSet<>(
+                    Comparator.comparing(ParkingFloor::getFloorId)));
+            availableSpots.put(parkingSpotType, new LongAdder());
+        }
     }
 
-    public boolean isFull() {
-        int index = 0;
-        BitSet bitSet = new BitSet();
+    public <T> CompletableFuture<T> submit(Supplier<T> gateRequest) {
+        return CompletableFuture.supplyAsync(gateRequest, gateExecutor);
+    }
+
+    public void shutdown() {
+        gateExecutor.shutdown();
+    }
+
+    public void addEntrancePanel(EntrancePanel entrancePanel) {
+        entrancePanels.putIfAbsent(entrancePanel.getId(), entrancePanel);
+    }
+
+    public void addExitPanel(ExitPanel exitPanel) {
+        exitPanels.putIfAbsent(exitPanel.getId(), exitPanel);
+    }
+
+    public EntrancePanel getEntrancePanel(String entrancePanelId) {
+        return entrancePanels.get(entrancePanelId);
+    }
+
+    public ExitPanel getExitPanel(String exitPanelId) {
+        return exitPanels.get(exitPanelId);
+    }
+
+    public ParkingFloor getParkingFloor(String floorId) {
         for (ParkingFloor parkingFloor : parkingFloors) {
-            bitSet.set(index++, parkingFloor.isFloorFull());
+            if (parkingFloor.getFloorId().equalsIgnoreCase(floorId))
+                return parkingFloor;
+        }
+        return null;
+    }
+
+    public void addParkingFloor(ParkingFloor parkingFloor) {
+        parkingFloors.add(parkingFloor);
+        for (ParkingSpotType parkingSpotType : ParkingSpotType.values()) {
+            availableSpots.get(parkingSpotType).add(parkingFloor.getFreeSpotCount(parkingSpotType));
+            if (parkingFloor.canPark(parkingSpotType))
+                floorsWithFreeSpots.get(parkingSpotType).add(parkingFloor);
         }
-        return bitSet.cardinality() == bitSet.size();
     }
 
-    public boolean canPark(VehicleType vehicleType) {
+    public void addParkingSpot(String floorId, ParkingSpot parkingSpot) {
         for (ParkingFloor parkingFloor : parkingFloors) {
-            if (parkingFloor.canPark(getSpotTypeForVehicle(vehicleType)))
+            if (parkingFloor.getFloorId().equalsIgnoreCase(floorId)) {
+                parkingFloor.addParkingSpot(parkingSpot);
+                availableSpots.get(parkingSpot.getParkingSpotType()).increment();
+                floorsWithFreeSpots.get(parkingSpot.getParkingSpotType()).add(parkingFloor);
+                return;
+            }
+        }
+    }
+
+    public boolean isFull() {
+        for (LongAdder available : availableSpots.values()) {
+            if (available.sum() > 0)
+                return false;
+        }
+        return true;
+    }
+
+    public boolean canPark(VehicleType vehicleType) {
+        for (ParkingSpotType parkingSpotType : SpotCompatibility.getCompatibleSpotTypes(vehicleType)) {
+            if (getAvailableSpotCount(parkingSpotType) > 0)
                 return true;
         }
         return false;
     }
 
+    public long getAvailableSpotCount(ParkingSpotType parkingSpotType) {
+        return availableSpots.get(parkingSpotType).sum();
+    }
+
     public ParkingSpot getParkingSpot(VehicleType vehicleType) {
-        for (ParkingFloor parkingFloor : ParkingLot.INSTANCE.getParkingFloors()) {
-            ParkingSpot parkingSpot = parkingFloor.getSpot(vehicleType);
-            if (parkingSpot != null) {
+        return getParkingSpot(vehicleType, null);
+    }
+
+    public ParkingSpot getParkingSpot(VehicleType vehicleType, String entrancePanelId) {
+        for (ParkingSpotType parkingSpotType : SpotCompatibility.getCompatibleSpotTypes(vehicleType)) {
+            ParkingSpot parkingSpot = getParkingSpot(parkingSpotType, entrancePanelId);
+            if (parkingSpot != null)
                 return parkingSpot;
-            }
         }
         return null;
     }
 
-    public ParkingSpot vacateParkingSpot(String parkingSpotId) {
-        for (ParkingFloor parkingFloor : ParkingLot.INSTANCE.getParkingFloors()) {
-            ParkingSpot parkingSpot = parkingFloor.vacateSpot(parkingSpotId);
+    private ParkingSpot getParkingSpot(ParkingSpotType parkingSpotType, String entrancePanelId) {
+        SpotHold hold = spotHold;
+        LocalDateTime now = hold == null ? null : LocalDateTime.now();
+        for (ParkingFloor parkingFloor : floorsWithFreeSpots.get(parkingSpotType)) {
+            int held = hold == null ? 0 : hold.heldSpots(parkingFloor.getFloorId(), parkingSpotType, now);
+            ParkingSpot parkingSpot = takeSpot(parkingFloor, parkingSpotType, entrancePanelId, held);
             if (parkingSpot != null)
                 return parkingSpot;
         }
         return null;
     }
-}
 
-class EntrancePanel {
-    private String id;
+    // for a checked-in reservation: its booked floor and type, held spots included
+    public ParkingSpot getReservedParkingSpot(String floorId, ParkingSpotType parkingSpotType, String entrancePanelId) {
+        ParkingFloor parkingFloor = getParkingFloor(floorId);
+        if (parkingFloor == null)
+            return null;
+        return takeSpot(parkingFloor, parkingSpotType, entrancePanelId, 0);
+    }
 
-    public EntrancePanel(String id) {
-        this.id = id;
+    private ParkingSpot takeSpot(ParkingFloor parkingFloor, ParkingSpotType parkingSpotType, String entrancePanelId,
+                                 int held) {
+        Set<ParkingFloor> floors = floorsWithFreeSpots.get(parkingSpotType);
+        ParkingSpot parkingSpot = parkingFloor.getSpot(parkingSpotType, entrancePanelId, held);
+        if (!parkingFloor.canPark(parkingSpotType)) {
+            floors.remove(parkingFloor);
+            // a vacate may have raced with the removal
+            if (parkingFloor.canPark(parkingSpotType))
+                floors.add(parkingFloor);
+        }
+        if (parkingSpot != null) {
+            availableSpots.get(parkingSpotType).decrement();
+            occupiedSpotFloors.put(parkingSpot.getParkingSpotId(), parkingFloor);
+        }
+        return parkingSpot;
     }
 
-    public ParkingTicket getParkingTicket(Vehicle vehicle) {
-        if (!ParkingLot.INSTANCE.canPark(vehicle.getType()))
-            return null;
-        ParkingSpot parkingSpot = ParkingLot.INSTANCE.getParkingSpot(vehicle.getType());
-        if (parkingSpot == null)
+    public ParkingSpot vacateParkingSpot(String parkingSpotId) {
+        ParkingFloor parkingFloor = occupiedSpotFloors.remove(parkingSpotId);
+        if (parkingFloor == null)
             return null;
-        return buildTicket(vehicle.getLicenseNumber(), parkingSpot.getParkingSpotId());
+        ParkingSpot parkingSpot = parkingFloor.vacateSpot(parkingSpotId);
+        if (parkingSpot != null) {
+            availableSpots.get(parkingSpot.getParkingSpotType()).increment();
+            floorsWithFreeSpots.get(parkingSpot.getParkingSpotType()).add(parkingFloor);
+        }
+        return parkingSpot;
     }
 
-    private ParkingTicket buildTicket(String vehicleLicenseNumber, String parkingSpotId) {
-        ParkingTicket parkingTicket = new ParkingTicket();
-        parkingTicket.setIssuedAt(LocalDateTime.now());
-        parkingTicket.setAllocatedSpotId(parkingSpotId);
-        parkingTicket.setLicensePlateNumber(vehicleLicenseNumber);
-        parkingTicket.setTicketNumber(UUID.randomUUID().toString());
-        parkingTicket.setTicketStatus(TicketStatus.ACTIVE);
-        return parkingTicket;
+    public void registerTicket(ParkingTicket parkingTicket) {
+        activeTickets.put(parkingTicket.getTicketNumber(), parkingTicket);
+        recordTicketEvent(TicketEventType.ISSUED, parkingTicket, parkingTicket.getIssuedAt());
     }
-}
 
-class ExitPanel {
-    private String id;
+    public ParkingTicket getTicket(String ticketNumber) {
+        return activeTickets.get(ticketNumber);
+    }
 
-    public ParkingTicket scanAndVacate(ParkingTicket parkingTicket) {
-        ParkingSpot parkingSpot =
-                ParkingLot.INSTANCE.vacateParkingSpot(parkingTicket.getAllocatedSpotId());
-        parkingTicket.setCharges(calculateCost(parkingTicket, parkingSpot.getParkingSpotType()));
+    public ParkingTicket closeTicket(String ticketNumber) {
+        ParkingTicket parkingTicket = activeTickets.remove(ticketNumber);
+        if (parkingTicket != null) {
+            parkingTicket.setTicketStatus(TicketStatus.VACATED);
+            recordTicketEvent(TicketEventType.VACATED, parkingTicket, parkingTicket.getVacatedAt());
+        }
         return parkingTicket;
     }
 
-    private double calculateCost(ParkingTicket parkingTicket, ParkingSpotType parkingSpotType) {
-        Duration duration = Duration.between(parkingTicket.getIssuedAt(), LocalDateTime.now());
-        long hours = duration.toHours();
-        if (hours == 0)
-            hours = 1;
-        double amount = hours * new HourlyCost().getCost(parkingSpotType);
-        return amount;
+    public ParkingTicket markTicketPaid(String ticketNumber, double charges) {
+        ParkingTicket parkingTicket = activeTickets.get(ticketNumber);
+        if (parkingTicket != null) {
+            parkingTicket.setCharges(charges);
+            parkingTicket.setTicketStatus(TicketStatus.PAID);
+            recordTicketEvent(TicketEventType.PAID, parkingTicket, LocalDateTime.now());
+        }
+        return parkingTicket;
     }
-}
 
-class HourlyCost {
-    private Map<ParkingSpotType, Double> hourlyCosts = new HashMap<>();
+    public ParkingTicket reportLostTicket(String ticketNumber) {
+        ParkingTicket parkingTicket = activeTickets.get(ticketNumber);
+        if (parkingTicket != null) {
+            parkingTicket.setTicketStatus(TicketStatus.LOST);
+            recordTicketEvent(TicketEventType.LOST, parkingTicket, LocalDateTime.now());
+        }
+        return parkingTicket;
+    }
 
-    public HourlyCost() {
-        hourlyCosts.put(ParkingSpotType.CAR, 20.0);
-        hourlyCosts.put(ParkingSpotType.LARGE, 30.0);
+    // replays the log into the ticket index and re-occupies the spots of vehicles still inside
+    public void recoverTickets(TicketEventLog ticketEventLog) {
+        for (ParkingTicket parkingTicket : ticketEventLog.rebuildTickets().values()) {
+            if (parkingTicket.getTicketStatus() == TicketStatus.VACATED)
+                continue;
+            for (ParkingFloor parkingFloor : parkingFloors) {
+                if (!parkingFloor.hasSpot(parkingTicket.getAllocatedSpotId()))
+                    continue;
+                ParkingSpot parkingSpot = parkingFloor.occupySpot(parkingTicket.getAllocatedSpotId());
+                if (parkingSpot != null) {
+                    availableSpots.get(parkingSpot.getParkingSpotType()).decrement();
+                    occupiedSpotFloors.put(parkingSpot.getParkingSpotId(), parkingFloor);
+                    activeTickets.put(parkingTicket.getTicketNumber(), parkingTicket);
+                }
+                break;
+            }
+        }
+        this.ticketEventLog = ticketEventLog;
+    }
+
+    private void recordTicketEvent(TicketEventType ticketEventType, ParkingTicket parkingTicket, LocalDateTime occurredAt) {
+        if (ticketEventLog != null)
+            ticketEventLog.append(new TicketEvent(ticketEventType, parkingTicket, occurredAt));
+    }
+
+    public TariffSchedule getTariffSchedule() {
+        return tariffSchedule;
+    }
+
+    public void setTariffSchedule(TariffSchedule tariffSchedule) {
+        this.tariffSchedule = tariffSchedule;
+    }
+
+    public void setSpotHold(SpotHold spotHold) {
+        this.spotHold = spotHold;
+    }
+
+    public ParkingFloor getFloorOfOccupiedSpot(String parkingSpotId) {
+        return occupiedSpotFloors.get(parkingSpotId);
+    }
+}
+
+class EntrancePanel {
+    private String id;
+    private ParkingLot parkingLot;
+
+    public EntrancePanel(String id, ParkingLot parkingLot) {
+        this.id = id;
+        this.parkingLot = parkingLot;
+    }
+
+    public ParkingTicket getParkingTicket(Vehicle vehicle) {
+        if (!parkingLot.canPark(vehicle.getType()))
+            return null;
+        ParkingSpot parkingSpot = parkingLot.getParkingSpot(vehicle.getType(), id);
+        if (parkingSpot == null)
+            return null;
+        ParkingTicket parkingTicket = buildTicket(vehicle.getLicenseNumber(), parkingSpot);
+        parkingLot.registerTicket(parkingTicket);
+        return parkingTicket;
+    }
+
+    public ParkingTicket getParkingTicket(Vehicle vehicle, Reservation reservation) {
+        if (reservation.getStatus() != ReservationStatus.CHECKED_IN)
+            return null;
+        ParkingSpot parkingSpot = parkingLot.getReservedParkingSpot(reservation.getFloorId(),
+                reservation.getParkingSpotType(), id);
+        if (parkingSpot == null)
+            return null;
+        ParkingTicket parkingTicket = buildTicket(vehicle.getLicenseNumber(), parkingSpot);
+        parkingLot.registerTicket(parkingTicket);
+        return parkingTicket;
+    }
+
+    private ParkingTicket buildTicket(String vehicleLicenseNumber, ParkingSpot parkingSpot) {
+        ParkingTicket parkingTicket = new ParkingTicket();
+        parkingTicket.setIssuedAt(LocalDateTime.now());
+        parkingTicket.setAllocatedSpotId(parkingSpot.getParkingSpotId());
+        parkingTicket.setParkingSpotType(parkingSpot.getParkingSpotType());
+        parkingTicket.setLicensePlateNumber(vehicleLicenseNumber);
+        parkingTicket.setTicketNumber(UUID.randomUUID().toString());
+        parkingTicket.setTicketStatus(TicketStatus.ACTIVE);
+        return parkingTicket;
+    }
+}
+
+class ExitPanel {
+    private String id;
+    private ParkingLot parkingLot;
+
+    public ExitPanel(String id, ParkingLot parkingLot) {
+        this.id = id;
+        this.parkingLot = parkingLot;
+    }
+
+    public ParkingTicket scanAndVacate(String ticketNumber) {
+        ParkingTicket parkingTicket = parkingLot.getTicket(ticketNumber);
+        if (parkingTicket == null)
+            return null;
+        return scanAndVacate(parkingTicket);
+    }
+
+    public ParkingTicket scanAndVacate(ParkingTicket parkingTicket) {
+        ParkingSpot parkingSpot =
+                parkingLot.vacateParkingSpot(parkingTicket.getAllocatedSpotId());
+        if (parkingSpot == null)
+            return parkingTicket;
+        LocalDateTime vacatedAt = LocalDateTime.now();
+        parkingTicket.setCharges(parkingLot.getTariffSchedule()
+                .price(parkingSpot.getParkingSpotType(), parkingTicket.getIssuedAt(), vacatedAt));
+        parkingTicket.setVacatedAt(vacatedAt);
+        parkingLot.closeTicket(parkingTicket.getTicketNumber());
+        return parkingTicket;
+    }
+}
+
+class HourlyCost {
+    private Map<ParkingSpotType, Double> hourlyCosts = new EnumMap<>(ParkingSpotType.class);
+
+    public HourlyCost() {
+        hourlyCosts.put(ParkingSpotType.CAR, 20.0);
+        hourlyCosts.put(ParkingSpotType.LARGE, 30.0);
         hourlyCosts.put(ParkingSpotType.ELECTRIC, 25.0);
         hourlyCosts.put(ParkingSpotType.MOTORBIKE, 10.0);
         hourlyCosts.put(ParkingSpotType.ABLED, 25.0);
+        hourlyCosts.put(ParkingSpotType.EBIKE, 5.0);
     }
 
     public double getCost(ParkingSpotType parkingSpotType) {
-        return hourlyCosts.get(parkingSpotType);
+        return hourlyCosts.getOrDefault(parkingSpotType, 0.0);
+    }
+}
+
+/*
+Hourly rates per spot type for every hour of the week, hour 0 being Monday 00:00.
+Prefix sums over the week make a stay of any length a couple of array reads.
+Schedules are immutable, withRate returns a new one that can be swapped in atomically.
+ */
+class TariffSchedule {
+    private static final int HOURS_PER_WEEK = 7 * 24;
+
+    private final double[][] rates;
+    private final double[][] cumulativeRates;
+
+    private TariffSchedule(double[][] rates) {
+        this.rates = rates;
+        this.cumulativeRates = new double[rates.length][HOURS_PER_WEEK + 1];
+        for (int type = 0; type < rates.length; type++) {
+            for (int hour = 0; hour < HOURS_PER_WEEK; hour++) {
+                cumulativeRates[type][hour + 1] = cumulativeRates[type][hour] + rates[type][hour];
+            }
+        }
+    }
+
+    public static TariffSchedule flat(HourlyCost hourlyCost) {
+        double[][] rates = new double[ParkingSpotType.values().length][HOURS_PER_WEEK];
+        for (ParkingSpotType parkingSpotType : ParkingSpotType.values()) {
+            Arrays.fill(rates[parkingSpotType.ordinal()], hourlyCost.getCost(parkingSpotType));
+        }
+        return new TariffSchedule(rates);
+    }
+
+    // fromHour inclusive, toHour exclusive, both in 0..24
+    public TariffSchedule withRate(ParkingSpotType parkingSpotType, Set<DayOfWeek> days,
+                                   int fromHour, int toHour, double hourlyRate) {
+        if (fromHour < 0 || toHour > 24 || fromHour >= toHour)
+            throw new IllegalArgumentException("Invalid hour range " + fromHour + "-" + toHour);
+        double[][] copy = new double[rates.length][];
+        for (int type = 0; type < rates.length; type++) {
+            copy[type] = rates[type].clone();
+        }
+        for (DayOfWeek day : days) {
+            int dayStart = (day.getValue() - 1) * 24;
+            Arrays.fill(copy[parkingSpotType.ordinal()], dayStart + fromHour, dayStart + toHour, hourlyRate);
+        }
+        return new TariffSchedule(copy);
+    }
+
+    public double getRate(ParkingSpotType parkingSpotType, LocalDateTime at) {
+        return rates[parkingSpotType.ordinal()][hourOfWeek(at)];
+    }
+
+    // every started stay is billed at least one hour, partial hours after that are free
+    public double price(ParkingSpotType parkingSpotType, LocalDateTime issuedAt, LocalDateTime vacatedAt) {
+        long seconds = vacatedAt.toEpochSecond(ZoneOffset.UTC) - issuedAt.toEpochSecond(ZoneOffset.UTC);
+        long hours = Math.max(1, seconds / 3600);
+        double[] cumulative = cumulativeRates[parkingSpotType.ordinal()];
+        int startHour = hourOfWeek(issuedAt);
+        int remainingHours = (int) (hours % HOURS_PER_WEEK);
+        int endHour = startHour + remainingHours;
+        double remainder = endHour <= HOURS_PER_WEEK
+                ? cumulative[endHour] - cumulative[startHour]
+                : cumulative[HOURS_PER_WEEK] - cumulative[startHour] + cumulative[endHour - HOURS_PER_WEEK];
+        return (hours / HOURS_PER_WEEK) * cumulative[HOURS_PER_WEEK] + remainder;
+    }
+
+    // end-of-day reconciliation: prices every closed ticket in one pass and sets its charges
+    public BillingSummary billAll(Collection<ParkingTicket> closedTickets) {
+        BillingSummary billingSummary = new BillingSummary();
+        for (ParkingTicket parkingTicket : closedTickets) {
+            if (parkingTicket.getVacatedAt() == null || parkingTicket.getParkingSpotType() == null) {
+                billingSummary.skipped++;
+                continue;
+            }
+            double charges = price(parkingTicket.getParkingSpotType(),
+                    parkingTicket.getIssuedAt(), parkingTicket.getVacatedAt());
+            parkingTicket.setCharges(charges);
+            billingSummary.add(parkingTicket.getParkingSpotType(), charges);
+        }
+        return billingSummary;
+    }
+
+    private static int hourOfWeek(LocalDateTime at) {
+        return (at.getDayOfWeek().getValue() - 1) * 24 + at.getHour();
+    }
+}
+
+class BillingSummary {
+    long billed;
+    long skipped;
+    double totalCharges;
+    private final double[] chargesByType = new double[ParkingSpotType.values().length];
+
+    void add(ParkingSpotType parkingSpotType, double charges) {
+        billed++;
+        totalCharges += charges;
+        chargesByType[parkingSpotType.ordinal()] += charges;
+    }
+
+    public long getBilled() {
+        return billed;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public double getTotalCharges() {
+        return totalCharges;
+    }
+
+    public double getCharges(ParkingSpotType parkingSpotType) {
+        return chargesByType[parkingSpotType.ordinal()];
+    }
+}
+
+enum ReservationStatus {
+    BOOKED,
+    CHECKED_IN,
+    CANCELLED,
+    NO_SHOW
+}
+
+class Reservation {
+    private String reservationId;
+    private String licensePlateNumber;
+    private ParkingSpotType parkingSpotType;
+    private String floorId;
+    private LocalDateTime from;
+    private LocalDateTime to;
+    // check-in, cancel and expiry race for a booking, only the one whose CAS wins acts on it
+    private final AtomicReference<ReservationStatus> status = new AtomicReference<>(ReservationStatus.BOOKED);
+
+    public Reservation(String reservationId, String licensePlateNumber, ParkingSpotType parkingSpotType,
+                       String floorId, LocalDateTime from, LocalDateTime to) {
+        this.reservationId = reservationId;
+        this.licensePlateNumber = licensePlateNumber;
+        this.parkingSpotType = parkingSpotType;
+        this.floorId = floorId;
+        this.from = from;
+        this.to = to;
+    }
+
+    public ReservationStatus getStatus() {
+        return status.get();
+    }
+
+    public boolean transition(ReservationStatus from, ReservationStatus to) {
+        return status.compareAndSet(from, to);
+    }
+}
+
+/*
+Reservation counts over fixed-size time slots, kept in a segment tree with lazy range add and
+range max. "How many reservations overlap 14:00-18:00 at the busiest moment" and booking a
+window are both O(log slots). The tree is a ring over the next `slots` slots: advanceTo slides
+the horizon forward and zeroes the slots that fell behind it, so their positions are reused.
+Windows that do not fit the horizon are never booked, slots outside it count as empty.
+Every slot's own count is mirrored in an atomic array, so the gates can read the current slot
+without taking the index's lock.
+ */
+class ReservationIndex {
+    private final LocalDateTime origin;
+    private final int slotMinutes;
+    private final int slots;
+    private final int[] max;
+    private final int[] pending;
+    private final AtomicIntegerArray slotCounts;
+    // slot number counted from origin of the first slot still in the horizon
+    private volatile long firstSlot;
+
+    public ReservationIndex(LocalDateTime origin, int slotMinutes, int slots) {
+        this.origin = origin;
+        this.slotMinutes = slotMinutes;
+        this.slots = slots;
+        this.max = new int[4 * slots];
+        this.pending = new int[4 * slots];
+        this.slotCounts = new AtomicIntegerArray(slots);
+    }
+
+    public synchronized void advanceTo(LocalDateTime now) {
+        long target = slotOf(now);
+        if (target <= firstSlot)
+            return;
+        if (target - firstSlot >= slots) {
+            Arrays.fill(max, 0);
+            Arrays.fill(pending, 0);
+            for (int position = 0; position < slots; position++) {
+                slotCounts.set(position, 0);
+            }
+        } else {
+            for (long slot = firstSlot; slot < target; slot++) {
+                int position = position(slot);
+                int reserved = query(1, 0, slots - 1, position, position);
+                if (reserved != 0)
+                    update(1, 0, slots - 1, position, position, -reserved);
+                slotCounts.set(position, 0);
+            }
+        }
+        firstSlot = target;
+    }
+
+    // lock-free read of one slot for the allocation path, it may trail a booking in flight
+    public int reservedAt(LocalDateTime at) {
+        long slot = slotOf(at);
+        long first = firstSlot;
+        if (slot < first || slot >= first + slots)
+            return 0;
+        return slotCounts.get(position(slot));
+    }
+
+    public synchronized int maxReserved(LocalDateTime from, LocalDateTime to) {
+        long first = Math.max(slotOf(from), firstSlot);
+        long last = Math.min(lastSlotOf(to), firstSlot + slots - 1);
+        return first > last ? 0 : queryRing(first, last);
+    }
+
+    public synchronized boolean hasCapacity(LocalDateTime from, LocalDateTime to, int limit) {
+        long first = slotOf(from);
+        long last = lastSlotOf(to);
+        return inHorizon(first, last) && queryRing(first, last) < limit;
+    }
+
+    public synchronized boolean tryReserve(LocalDateTime from, LocalDateTime to, int limit) {
+        long first = slotOf(from);
+        long last = lastSlotOf(to);
+        if (!inHorizon(first, last) || queryRing(first, last) >= limit)
+            return false;
+        updateRing(first, last, 1);
+        return true;
+    }
+
+    // counts the part of the window inside the horizon without a limit
+    public synchronized void add(LocalDateTime from, LocalDateTime to) {
+        updateHorizon(from, to, 1);
+    }
+
+    // slots that already slid out of the horizon were zeroed, only the rest is given back
+    public synchronized void release(LocalDateTime from, LocalDateTime to) {
+        updateHorizon(from, to, -1);
+    }
+
+    private void updateHorizon(LocalDateTime from, LocalDateTime to, int delta) {
+        long first = Math.max(slotOf(from), firstSlot);
+        long last = Math.min(lastSlotOf(to), firstSlot + slots - 1);
+        if (first <= last)
+            updateRing(first, last, delta);
+    }
+
+    private boolean inHorizon(long first, long last) {
+        return first >= firstSlot && last >= first && last < firstSlot + slots;
+    }
+
+    private long slotOf(LocalDateTime at) {
+        return Math.floorDiv(Duration.between(origin, at).toMinutes(), slotMinutes);
+    }
+
+    // the slot holding the last minute before `at`
+    private long lastSlotOf(LocalDateTime at) {
+        return Math.floorDiv(Duration.between(origin, at).toMinutes() - 1, slotMinutes);
+    }
+
+    private int position(long slot) {
+        return (int) Math.floorMod(slot, (long) slots);
+    }
+
+    // a window shorter than the ring wraps at most once
+    private int queryRing(long first, long last) {
+        int from = position(first);
+        int to = position(last);
+        if (from <= to)
+            return query(1, 0, slots - 1, from, to);
+        return Math.max(query(1, 0, slots - 1, from, slots - 1), query(1, 0, slots - 1, 0, to));
+    }
+
+    private void updateRing(long first, long last, int delta) {
+        for (long slot = first; slot <= last; slot++) {
+            slotCounts.addAndGet(position(slot), delta);
+        }
+        int from = position(first);
+        int to = position(last);
+        if (from <= to) {
+            update(1, 0, slots - 1, from, to, delta);
+        } else {
+            update(1, 0, slots - 1, from, slots - 1, delta);
+            update(1, 0, slots - 1, 0, to, delta);
+        }
+    }
+
+    private int query(int node, int low, int high, int from, int to) {
+        if (to < low || high < from)
+            return 0;
+        if (from <= low && high <= to)
+            return max[node];
+        push(node);
+        int mid = (low + high) >>> 1;
+        return Math.max(query(2 * node, low, mid, from, to), query(2 * node + 1, mid + 1, high, from, to));
+    }
+
+    private void update(int node, int low, int high, int from, int to, int delta) {
+        if (to < low || high < from)
+            return;
+        if (from <= low && high <= to) {
+            max[node] += delta;
+            pending[node] += delta;
+            return;
+        }
+        push(node);
+        int mid = (low + high) >>> 1;
+        update(2 * node, low, mid, from, to, delta);
+        update(2 * node + 1, mid + 1, high, from, to, delta);
+        max[node] = Math.max(max[2 * node], max[2 * node + 1]);
+    }
+
+    private void push(int node) {
+        if (pending[node] != 0) {
+            for (int child = 2 * node; child <= 2 * node + 1; child++) {
+                max[child] += pending[node];
+                pending[child] += pending[node];
+            }
+            pending[node] = 0;
+        }
+    }
+}
+
+/*
+Learns per spot type an hourly occupancy profile over the week and the share of reservations
+that never show up, both as exponentially weighted averages. Overbooking is allowed up to the
+no-show rate, damped by how busy that window has historically been and capped by maxOverbookingRate.
+ */
+class CapacityForecaster {
+    private static final int HOURS_PER_WEEK = 7 * 24;
+
+    private final double smoothing;
+    private final double maxOverbookingRate;
+    private final double[][] occupancy = new double[ParkingSpotType.values().length][HOURS_PER_WEEK];
+    private final double[] noShowRate = new double[ParkingSpotType.values().length];
+
+    public CapacityForecaster(double smoothing, double maxOverbookingRate) {
+        this.smoothing = smoothing;
+        this.maxOverbookingRate = maxOverbookingRate;
+    }
+
+    public synchronized void recordOccupancy(ParkingSpotType parkingSpotType, LocalDateTime at, double occupiedFraction) {
+        double[] profile = occupancy[parkingSpotType.ordinal()];
+        int hour = hourOfWeek(at);
+        profile[hour] += smoothing * (occupiedFraction - profile[hour]);
+    }
+
+    public synchronized void recordReservationOutcome(ParkingSpotType parkingSpotType, boolean showedUp) {
+        noShowRate[parkingSpotType.ordinal()] += smoothing * ((showedUp ? 0.0 : 1.0) - noShowRate[parkingSpotType.ordinal()]);
+    }
+
+    public synchronized int allowedReservations(ParkingSpotType parkingSpotType, int totalSpots,
+                                                LocalDateTime from, LocalDateTime to) {
+        double[] profile = occupancy[parkingSpotType.ordinal()];
+        double peakOccupancy = 0;
+        for (LocalDateTime hour = from.withMinute(0).withSecond(0).withNano(0); hour.isBefore(to); hour = hour.plusHours(1)) {
+            peakOccupancy = Math.max(peakOccupancy, profile[hourOfWeek(hour)]);
+            if (!hour.isBefore(from.plusDays(7)))
+                break;
+        }
+        double overbookingRate = Math.min(maxOverbookingRate,
+                noShowRate[parkingSpotType.ordinal()] * (1 - peakOccupancy));
+        return totalSpots + (int) Math.floor(totalSpots * overbookingRate);
+    }
+
+    private static int hourOfWeek(LocalDateTime at) {
+        return (at.getDayOfWeek().getValue() - 1) * 24 + at.getHour();
+    }
+}
+
+class ReservationManager {
+    public static final int SLOT_MINUTES = 15;
+
+    private ParkingLot parkingLot;
+    private CapacityForecaster capacityForecaster;
+    private LocalDateTime origin;
+    private int slots;
+    // start of the booking horizon, moved forward by advance
+    private volatile LocalDateTime horizonStart;
+    private Map<String, Map<ParkingSpotType, ReservationIndex>> indexesByFloor = new ConcurrentHashMap<>();
+    // windows of the bookings that have checked in, their vehicles already hold a spot
+    private Map<String, Map<ParkingSpotType, ReservationIndex>> checkedInByFloor = new ConcurrentHashMap<>();
+    // booked and checked-in reservations; cancelled, no-show and finished ones are evicted
+    private Map<String, Reservation> reservations = new ConcurrentHashMap<>();
+
+    public ReservationManager(ParkingLot parkingLot, CapacityForecaster capacityForecaster,
+                              LocalDateTime origin, int horizonDays) {
+        this.parkingLot = parkingLot;
+        this.capacityForecaster = capacityForecaster;
+        this.origin = origin.withMinute(origin.getMinute() - origin.getMinute() % SLOT_MINUTES)
+                .withSecond(0).withNano(0);
+        this.slots = horizonDays * 24 * 60 / SLOT_MINUTES;
+        this.horizonStart = this.origin;
+        parkingLot.setSpotHold(this::heldSpots);
+    }
+
+    public boolean hasCapacity(ParkingSpotType parkingSpotType, LocalDateTime from, LocalDateTime to) {
+        for (ParkingFloor parkingFloor : parkingLot.getParkingFloors()) {
+            int limit = allowedReservations(parkingFloor, parkingSpotType, from, to);
+            if (limit > 0 && indexFor(indexesByFloor, parkingFloor.getFloorId(), parkingSpotType).hasCapacity(from, to, limit))
+                return true;
+        }
+        return false;
+    }
+
+    public Reservation reserve(String licensePlateNumber, ParkingSpotType parkingSpotType,
+                               LocalDateTime from, LocalDateTime to) {
+        if (!from.isBefore(to))
+            throw new IllegalArgumentException("Reservation must end after it starts");
+        for (ParkingFloor parkingFloor : parkingLot.getParkingFloors()) {
+            int limit = allowedReservations(parkingFloor, parkingSpotType, from, to);
+            if (limit > 0 && indexFor(indexesByFloor, parkingFloor.getFloorId(), parkingSpotType).tryReserve(from, to, limit)) {
+                Reservation reservation = new Reservation(UUID.randomUUID().toString(), licensePlateNumber,
+                        parkingSpotType, parkingFloor.getFloorId(), from, to);
+                reservations.put(reservation.getReservationId(), reservation);
+                return reservation;
+            }
+        }
+        return null;
+    }
+
+    public Reservation checkIn(String reservationId, LocalDateTime at) {
+        Reservation reservation = reservations.get(reservationId);
+        if (reservation == null || at.isBefore(reservation.getFrom().minusMinutes(SLOT_MINUTES))
+                || !at.isBefore(reservation.getTo())
+                || !reservation.transition(ReservationStatus.BOOKED, ReservationStatus.CHECKED_IN))
+            return null;
+        indexFor(checkedInByFloor, reservation.getFloorId(), reservation.getParkingSpotType())
+                .add(reservation.getFrom(), reservation.getTo());
+        capacityForecaster.recordReservationOutcome(reservation.getParkingSpotType(), true);
+        return reservation;
+    }
+
+    public Reservation cancel(String reservationId) {
+        Reservation reservation = reservations.get(reservationId);
+        if (reservation == null || !reservation.transition(ReservationStatus.BOOKED, ReservationStatus.CANCELLED))
+            return null;
+        release(reservation);
+        reservations.remove(reservationId);
+        return reservation;
+    }
+
+    // slides every index's horizon up to now and reclaims the slots that are behind it
+    public void advance(LocalDateTime now) {
+        if (!now.isAfter(horizonStart))
+            return;
+        horizonStart = now;
+        for (Map<String, Map<ParkingSpotType, ReservationIndex>> indexesByType : List.of(indexesByFloor, checkedInByFloor)) {
+            for (Map<ParkingSpotType, ReservationIndex> indexes : indexesByType.values()) {
+                for (ReservationIndex reservationIndex : indexes.values()) {
+                    reservationIndex.advanceTo(now);
+                }
+            }
+        }
+    }
+
+    // bookings whose window closed without a check-in become no-shows and feed the forecaster,
+    // closed windows are evicted whatever their outcome
+    public int expireNoShows(LocalDateTime now) {
+        advance(now);
+        int expired = 0;
+        for (Iterator<Reservation> iterator = reservations.values().iterator(); iterator.hasNext(); ) {
+            Reservation reservation = iterator.next();
+            if (now.isBefore(reservation.getTo()))
+                continue;
+            if (reservation.transition(ReservationStatus.BOOKED, ReservationStatus.NO_SHOW)) {
+                release(reservation);
+                capacityForecaster.recordReservationOutcome(reservation.getParkingSpotType(), false);
+                expired++;
+            }
+            iterator.remove();
+        }
+        return expired;
+    }
+
+    // booked vehicles due in the current slot that have not checked in yet
+    public int heldSpots(String floorId, ParkingSpotType parkingSpotType, LocalDateTime at) {
+        ReservationIndex booked = existingIndex(indexesByFloor, floorId, parkingSpotType);
+        if (booked == null)
+            return 0;
+        ReservationIndex checkedIn = existingIndex(checkedInByFloor, floorId, parkingSpotType);
+        int held = booked.reservedAt(at) - (checkedIn == null ? 0 : checkedIn.reservedAt(at));
+        return Math.max(0, held);
+    }
+
+    public void sampleOccupancy(LocalDateTime now) {
+        for (ParkingSpotType parkingSpotType : ParkingSpotType.values()) {
+            int total = 0;
+            int occupied = 0;
+            for (ParkingFloor parkingFloor : parkingLot.getParkingFloors()) {
+                total += parkingFloor.getTotalSpotCount(parkingSpotType);
+                occupied += parkingFloor.getOccupiedSpotCount(parkingSpotType);
+            }
+            if (total > 0)
+                capacityForecaster.recordOccupancy(parkingSpotType, now, (double) occupied / total);
+        }
+    }
+
+    public Reservation getReservation(String reservationId) {
+        return reservations.get(reservationId);
+    }
+
+    private int allowedReservations(ParkingFloor parkingFloor, ParkingSpotType parkingSpotType,
+                                    LocalDateTime from, LocalDateTime to) {
+        return capacityForecaster.allowedReservations(parkingSpotType,
+                parkingFloor.getTotalSpotCount(parkingSpotType), from, to);
+    }
+
+    private void release(Reservation reservation) {
+        indexesByFloor.get(reservation.getFloorId()).get(reservation.getParkingSpotType())
+                .release(reservation.getFrom(), reservation.getTo());
+    }
+
+    private ReservationIndex indexFor(Map<String, Map<ParkingSpotType, ReservationIndex>> indexesByType,
+                                      String floorId, ParkingSpotType parkingSpotType) {
+        return indexesByType.computeIfAbsent(floorId, id -> new ConcurrentHashMap<>())
+                .computeIfAbsent(parkingSpotType, type -> {
+                    ReservationIndex reservationIndex = new ReservationIndex(origin, SLOT_MINUTES, slots);
+                    reservationIndex.advanceTo(horizonStart);
+                    return reservationIndex;
+                });
+    }
+
+    private static ReservationIndex existingIndex(Map<String, Map<ParkingSpotType, ReservationIndex>> indexesByType,
+                                                  String floorId, ParkingSpotType parkingSpotType) {
+        Map<ParkingSpotType, ReservationIndex> indexes = indexesByType.get(floorId);
+        return indexes == null ? null : indexes.get(parkingSpotType);
     }
 }
 
@@ -282,6 +1532,7 @@ class ParkingTicket {
     private String ticketNumber;
     private String licensePlateNumber;
     private String allocatedSpotId;
+    private ParkingSpotType parkingSpotType;
     private LocalDateTime issuedAt;
     private LocalDateTime vacatedAt;
     private double charges;
@@ -290,104 +1541,691 @@ class ParkingTicket {
 
 enum TicketStatus {
     ACTIVE,
+    PAID,
+    VACATED,
+    LOST
+}
+
+enum TicketEventType {
+    ISSUED,
+    PAID,
+    VACATED,
     LOST
 }
 
-//class ParkingLotRepository {
-//    public static Map<String, ParkingLot> parkingLotMap = new HashMap<>();
-//    public static List<ParkingLot> parkingLots = new ArrayList<>();
-//
-//
-//    public ParkingLot addParkingLot(ParkingLot parkingLot) {
-//        parkingLotMap.putIfAbsent(parkingLot.getParkingLotId(), parkingLot);
-//        parkingLots.add(parkingLot);
-//        return parkingLot;
-//    }
-//
-//    public ParkingLot getParkingLot(String parkingLotId) {
-//        return parkingLotMap.get(parkingLotId);
-//    }
-//
-//    public ParkingFloor addParkingFloor(String parkingLotId, ParkingFloor parkingFloor)
-//            throws InvalidParkingLotException {
-//        ParkingLot parkingLot = parkingLotMap.get(parkingLotId);
-//        if (parkingLot == null)
-//            throw new InvalidParkingLotException("Invalid parking lot");
-//
-//        //Idempotency
-//        Optional<ParkingFloor> floor = parkingLot.getParkingFloors().stream()
-//                .filter(pFloor -> pFloor.getFloorId()
-//                        .equalsIgnoreCase(parkingFloor.getFloorId())).findFirst();
-//
-//        if (floor.isPresent())
-//            return floor.get();
-//
-//        parkingLot.getParkingFloors().add(parkingFloor);
-//        return parkingFloor;
-//    }
-//
-//    public ParkingSpot addParkingSpot(String parkingLotId, String parkingFloorId, ParkingSpot parkingSpot)
-//            throws InvalidParkingLotException, InvlaidParkingFloorException {
-//        ParkingLot parkingLot = parkingLotMap.get(parkingLotId);
-//        if (parkingLot == null)
-//            throw new InvalidParkingLotException("Invalid parking lot");
-//        Optional<ParkingFloor> floor = parkingLot.getParkingFloors().stream()
-//                .filter(pFloor -> pFloor.getFloorId()
-//                        .equalsIgnoreCase(parkingFloorId)).findFirst();
-//        if (!floor.isPresent()) {
-//            throw new InvlaidParkingFloorException("Invalid parking floor");
-//        }
-//        Optional<ParkingSpot> spot =
-//                floor.get().getParkingSpots().get(parkingSpot.getParkingSpotType())
-//                        .stream().filter(pSpot ->
-//                                pSpot.getParkingSpotId()
-//                                        .equalsIgnoreCase(parkingSpot.getParkingSpotId())).findFirst();
-//        if (spot.isPresent())
-//            return spot.get();
-//
-//        floor.get().getParkingSpots().get(parkingSpot.getParkingSpotType()).add(parkingSpot);
-//        return parkingSpot;
-//    }
-//
-//    public EntrancePanel addEntryPanel(String parkingLotId, EntrancePanel entrancePanel)
-//            throws InvalidParkingLotException {
-//        ParkingLot parkingLot = parkingLotMap.get(parkingLotId);
-//        if (parkingLot == null)
-//            throw new InvalidParkingLotException("Invalid parking lot");
-//        Optional<EntrancePanel> ePanel =
-//                parkingLotMap.get(parkingLotId)
-//                        .getEntrancePanels().stream().filter(ep ->
-//                                ep.getId().equalsIgnoreCase(entrancePanel.getId())).findFirst();
-//        if (ePanel.isPresent())
-//            return entrancePanel;
-//        parkingLotMap.get(parkingLotId)
-//                .getEntrancePanels().add(entrancePanel);
-//        return entrancePanel;
-//    }
-//
-//    public ExitPanel addExitPanel(String parkingLotId, ExitPanel exitPanel)
-//            throws InvalidParkingLotException {
-//        ParkingLot parkingLot = parkingLotMap.get(parkingLotId);
-//        if (parkingLot == null)
-//            throw new InvalidParkingLotException("Invalid parking lot");
-//        Optional<EntrancePanel> ePanel =
-//                parkingLotMap.get(parkingLotId)
-//                        .getEntrancePanels().stream().filter(ep ->
-//                                ep.getId().equalsIgnoreCase(exitPanel.getId())).findFirst();
-//        if (ePanel.isPresent())
-//            return exitPanel;
-//        parkingLotMap.get(parkingLotId)
-//                .getExitPanels().add(exitPanel);
-//        return exitPanel;
-//    }
-//
-//}
+class TicketEvent {
+    private final TicketEventType type;
+    private final String ticketNumber;
+    private final String licensePlateNumber;
+    private final String allocatedSpotId;
+    private final ParkingSpotType parkingSpotType;
+    private final LocalDateTime occurredAt;
+    private final double charges;
+
+    public TicketEvent(TicketEventType type, String ticketNumber, String licensePlateNumber, String allocatedSpotId,
+                       ParkingSpotType parkingSpotType, LocalDateTime occurredAt, double charges) {
+        this.type = type;
+        this.ticketNumber = ticketNumber;
+        this.licensePlateNumber = licensePlateNumber;
+        this.allocatedSpotId = allocatedSpotId;
+        this.parkingSpotType = parkingSpotType;
+        this.occurredAt = occurredAt;
+        this.charges = charges;
+    }
+
+    public TicketEvent(TicketEventType type, ParkingTicket parkingTicket, LocalDateTime occurredAt) {
+        this(type, parkingTicket.getTicketNumber(), parkingTicket.getLicensePlateNumber(),
+                parkingTicket.getAllocatedSpotId(), parkingTicket.getParkingSpotType(), occurredAt,
+                parkingTicket.getCharges());
+    }
+
+    public void applyTo(ParkingTicket parkingTicket) {
+        switch (type) {
+            case ISSUED:
+                parkingTicket.setTicketNumber(ticketNumber);
+                parkingTicket.setLicensePlateNumber(licensePlateNumber);
+                parkingTicket.setAllocatedSpotId(allocatedSpotId);
+                parkingTicket.setParkingSpotType(parkingSpotType);
+                parkingTicket.setIssuedAt(occurredAt);
+                parkingTicket.setTicketStatus(TicketStatus.ACTIVE);
+                break;
+            case PAID:
+                parkingTicket.setCharges(charges);
+                parkingTicket.setTicketStatus(TicketStatus.PAID);
+                break;
+            case VACATED:
+                parkingTicket.setCharges(charges);
+                parkingTicket.setVacatedAt(occurredAt);
+                parkingTicket.setTicketStatus(TicketStatus.VACATED);
+                break;
+            case LOST:
+                parkingTicket.setTicketStatus(TicketStatus.LOST);
+                break;
+        }
+    }
+}
+
+/*
+Append-only ticket log over memory-mapped segment files. A record is
+[int bodyLength][byte type][byte spotType][long epochMillis][double charges][ticketNumber][plate][spotId]
+with spotType -1 when unknown and each string as an unsigned short length followed by UTF-8 bytes. The length is
+written last, so a record torn by a crash reads as zero and marks the end of the log.
+ */
+class TicketEventLog implements Closeable {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final Path directory;
+    private final int segmentSize;
+    private int segmentNumber;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+
+    public TicketEventLog(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public TicketEventLog(Path directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        List<Path> segments = listSegments();
+        this.segmentNumber = segments.isEmpty() ? 0 : segments.size() - 1;
+        openSegment(segmentNumber);
+        int[] offsets = recordOffsets(segment);
+        segment.position(offsets.length == 0 ? 0 : endOf(segment, offsets[offsets.length - 1]));
+    }
+
+    public synchronized void append(TicketEvent event) {
+        byte[] ticketNumber = bytes(event.getTicketNumber());
+        byte[] licensePlateNumber = bytes(event.getLicensePlateNumber());
+        byte[] allocatedSpotId = bytes(event.getAllocatedSpotId());
+        int bodyLength = 2 * Byte.BYTES + Long.BYTES + Double.BYTES + 3 * Short.BYTES
+                + ticketNumber.length + licensePlateNumber.length + allocatedSpotId.length;
+        if (Integer.BYTES + bodyLength > segmentSize - Integer.BYTES)
+            throw new IllegalArgumentException("Ticket event does not fit in a log segment");
+        if (segment.remaining() < Integer.BYTES + bodyLength + Integer.BYTES)
+            rollSegment();
+
+        int start = segment.position();
+        segment.position(start + Integer.BYTES);
+        segment.put((byte) event.getType().ordinal());
+        segment.put((byte) (event.getParkingSpotType() == null ? -1 : event.getParkingSpotType().ordinal()));
+        segment.putLong(event.getOccurredAt().toInstant(ZoneOffset.UTC).toEpochMilli());
+        segment.putDouble(event.getCharges());
+        putString(ticketNumber);
+        putString(licensePlateNumber);
+        putString(allocatedSpotId);
+        segment.putInt(start, bodyLength);
+    }
+
+    public synchronized void sync() {
+        segment.force();
+    }
+
+    public List<TicketEvent> readAll() throws IOException {
+        List<TicketEvent> events = new ArrayList<>();
+        for (Path path : listSegments()) {
+            try (FileChannel readChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, readChannel.size());
+                int[] offsets = recordOffsets(buffer);
+                // boundaries need a sequential walk, the records themselves decode independently
+                events.addAll(IntStream.range(0, offsets.length).parallel()
+                        .mapToObj(i -> decode(buffer, offsets[i]))
+                        .collect(Collectors.toList()));
+            }
+        }
+        return events;
+    }
+
+    public Map<String, ParkingTicket> rebuildTickets() {
+        List<TicketEvent> events;
+        try {
+            events = readAll();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // groupingBy keeps encounter order inside each ticket, so events fold in log order
+        Map<String, List<TicketEvent>> eventsByTicket = events.parallelStream()
+                .collect(Collectors.groupingBy(TicketEvent::getTicketNumber));
+        Map<String, ParkingTicket> tickets = new ConcurrentHashMap<>();
+        eventsByTicket.entrySet().parallelStream().forEach(entry -> {
+            ParkingTicket parkingTicket = new ParkingTicket();
+            for (TicketEvent event : entry.getValue()) {
+                event.applyTo(parkingTicket);
+            }
+            tickets.put(entry.getKey(), parkingTicket);
+        });
+        return tickets;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        segment.force();
+        channel.close();
+    }
+
+    private void rollSegment() {
+        try {
+            segment.force();
+            channel.close();
+            openSegment(++segmentNumber);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void openSegment(int number) throws IOException {
+        Path path = directory.resolve(String.format("tickets-%05d.log", number));
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.filter(path -> path.getFileName().toString().matches("tickets-\\d{5}\\.log"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private void putString(byte[] value) {
+        segment.putShort((short) value.length);
+        segment.put(value);
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int[] recordOffsets(MappedByteBuffer buffer) {
+        List<Integer> offsets = new ArrayList<>();
+        int offset = 0;
+        while (offset + Integer.BYTES <= buffer.limit()) {
+            int bodyLength = buffer.getInt(offset);
+            if (bodyLength <= 0 || offset + Integer.BYTES + bodyLength > buffer.limit())
+                break;
+            offsets.add(offset);
+            offset += Integer.BYTES + bodyLength;
+        }
+        return offsets.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int endOf(MappedByteBuffer buffer, int offset) {
+        return offset + Integer.BYTES + buffer.getInt(offset);
+    }
+
+    private static TicketEvent decode(MappedByteBuffer buffer, int offset) {
+        int position = offset + Integer.BYTES;
+        TicketEventType type = TicketEventType.values()[buffer.get(position)];
+        position += Byte.BYTES;
+        byte spotType = buffer.get(position);
+        position += Byte.BYTES;
+        ParkingSpotType parkingSpotType = spotType < 0 ? null : ParkingSpotType.values()[spotType];
+        long epochMillis = buffer.getLong(position);
+        position += Long.BYTES;
+        double charges = buffer.getDouble(position);
+        position += Double.BYTES;
+        String[] strings = new String[3];
+        for (int i = 0; i < strings.length; i++) {
+            int length = buffer.getShort(position) & 0xFFFF;
+            position += Short.BYTES;
+            byte[] value = new byte[length];
+            buffer.get(position, value);
+            position += length;
+            strings[i] = new String(value, StandardCharsets.UTF_8);
+        }
+        LocalDateTime occurredAt = LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneOffset.UTC);
+        return new TicketEvent(type, strings[0], strings[1], strings[2], parkingSpotType, occurredAt, charges);
+    }
+}
+
+class InvalidParkingLotException extends RuntimeException {
+    public InvalidParkingLotException(String message) {
+        super(message);
+    }
+}
+
+class InvalidParkingFloorException extends RuntimeException {
+    public InvalidParkingFloorException(String message) {
+        super(message);
+    }
+}
+
+class ParkingLotRepository {
+    private Map<String, ParkingLot> parkingLotMap = new ConcurrentHashMap<>();
+
+    public ParkingLot addParkingLot(ParkingLot parkingLot) {
+        ParkingLot existing = parkingLotMap.putIfAbsent(parkingLot.getParkingLotId(), parkingLot);
+        return existing != null ? existing : parkingLot;
+    }
+
+    public ParkingLot getParkingLot(String parkingLotId) {
+        ParkingLot parkingLot = parkingLotMap.get(parkingLotId);
+        if (parkingLot == null)
+            throw new InvalidParkingLotException("Invalid parking lot");
+        return parkingLot;
+    }
+
+    public ParkingLot removeParkingLot(String parkingLotId) {
+        ParkingLot parkingLot = parkingLotMap.remove(parkingLotId);
+        if (parkingLot != null)
+            parkingLot.shutdown();
+        return parkingLot;
+    }
+
+    public Collection<ParkingLot> getParkingLots() {
+        return parkingLotMap.values();
+    }
+
+    public ParkingFloor addParkingFloor(String parkingLotId, ParkingFloor parkingFloor) {
+        ParkingLot parkingLot = getParkingLot(parkingLotId);
+        //Idempotency
+        ParkingFloor floor = parkingLot.getParkingFloor(parkingFloor.getFloorId());
+        if (floor != null)
+            return floor;
+        parkingLot.addParkingFloor(parkingFloor);
+        return parkingFloor;
+    }
+
+    public ParkingSpot addParkingSpot(String parkingLotId, String parkingFloorId, ParkingSpot parkingSpot) {
+        ParkingLot parkingLot = getParkingLot(parkingLotId);
+        ParkingFloor floor = parkingLot.getParkingFloor(parkingFloorId);
+        if (floor == null)
+            throw new InvalidParkingFloorException("Invalid parking floor");
+        //Idempotency, the existing spot is returned as it is, occupied or not
+        ParkingSpot spot = floor.getParkingSpot(parkingSpot.getParkingSpotId());
+        if (spot != null)
+            return spot;
+        parkingLot.addParkingSpot(parkingFloorId, parkingSpot);
+        return parkingSpot;
+    }
+
+    // frees a spot that was taken without a ticket, e.g. held back by an attendant
+    public ParkingSpot returnParkingSpotToService(String parkingLotId, String parkingSpotId) {
+        return getParkingLot(parkingLotId).vacateParkingSpot(parkingSpotId);
+    }
+
+    public EntrancePanel addEntryPanel(String parkingLotId, EntrancePanel entrancePanel) {
+        getParkingLot(parkingLotId).addEntrancePanel(entrancePanel);
+        return entrancePanel;
+    }
+
+    public ExitPanel addExitPanel(String parkingLotId, ExitPanel exitPanel) {
+        getParkingLot(parkingLotId).addExitPanel(exitPanel);
+        return exitPanel;
+    }
+}
+
+// routes gate requests by lot id onto the owning lot's executor
+class ParkingLotService {
+    private ParkingLotRepository parkingLotRepository;
+
+    public ParkingLotService(ParkingLotRepository parkingLotRepository) {
+        this.parkingLotRepository = parkingLotRepository;
+    }
+
+    public CompletableFuture<ParkingTicket> park(String parkingLotId, String entrancePanelId, Vehicle vehicle) {
+        ParkingLot parkingLot = parkingLotRepository.getParkingLot(parkingLotId);
+        EntrancePanel entrancePanel = parkingLot.getEntrancePanel(entrancePanelId);
+        if (entrancePanel == null)
+            throw new IllegalArgumentException("Invalid entrance panel " + entrancePanelId);
+        return parkingLot.submit(() -> entrancePanel.getParkingTicket(vehicle));
+    }
+
+    public CompletableFuture<ParkingTicket> exit(String parkingLotId, String exitPanelId, String ticketNumber) {
+        ParkingLot parkingLot = parkingLotRepository.getParkingLot(parkingLotId);
+        ExitPanel exitPanel = parkingLot.getExitPanel(exitPanelId);
+        if (exitPanel == null)
+            throw new IllegalArgumentException("Invalid exit panel " + exitPanelId);
+        return parkingLot.submit(() -> exitPanel.scanAndVacate(ticketNumber));
+    }
+}
+
+interface ArrivalCurve {
+    double arrivalsPerMinute(int minuteOfDay);
+
+    static ArrivalCurve steady(double arrivalsPerMinute) {
+        return minuteOfDay -> arrivalsPerMinute;
+    }
+
+    // base load with a bell-shaped peak centred on peakMinute
+    static ArrivalCurve rush(double baseRate, double peakRate, int peakMinute, int widthMinutes) {
+        return minuteOfDay -> {
+            double distance = (minuteOfDay - peakMinute) / (double) widthMinutes;
+            return baseRate + (peakRate - baseRate) * Math.exp(-distance * distance / 2);
+        };
+    }
+
+    // flat surge, e.g. doors opening for an event
+    static ArrivalCurve surge(ArrivalCurve background, int fromMinute, int toMinute, double surgeRate) {
+        return minuteOfDay -> background.arrivalsPerMinute(minuteOfDay)
+                + (minuteOfDay >= fromMinute && minuteOfDay < toMinute ? surgeRate : 0);
+    }
+}
+
+enum AllocationMode {
+    FREE_LIST,
+    NEAREST_TO_ENTRANCE
+}
+
+// log-linear latency histogram, 16 sub-buckets per power of two (about 6% resolution)
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private final AtomicLongArray counts = new AtomicLongArray(64 << SUB_BUCKET_BITS);
+
+    public void record(long nanos) {
+        counts.incrementAndGet(bucket(Math.max(1, nanos)));
+    }
+
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    public long percentile(double percentile) {
+        long total = count();
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return upperBound(i);
+        }
+        return upperBound(counts.length() - 1);
+    }
+
+    private static int bucket(long value) {
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude < SUB_BUCKET_BITS)
+            return (int) value;
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+        return ((magnitude - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < (1 << SUB_BUCKET_BITS))
+            return bucket;
+        int magnitude = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket & ((1 << SUB_BUCKET_BITS) - 1);
+        return ((subBucket | (1L << SUB_BUCKET_BITS)) + 1) << (magnitude - SUB_BUCKET_BITS);
+    }
+}
+
+class SimulationReport {
+    AllocationMode allocationMode;
+    long arrivals;
+    long allocationFailures;
+    long exits;
+    double meanUtilization;
+    double peakUtilization;
+    long wallMillis;
+    LatencyHistogram entryLatency = new LatencyHistogram();
+    LatencyHistogram exitLatency = new LatencyHistogram();
+
+    @Override
+    public String toString() {
+        return allocationMode + ": arrivals=" + arrivals + ", failures=" + allocationFailures + ", exits=" + exits
+                + String.format(", utilization mean=%.1f%% peak=%.1f%%", meanUtilization * 100, peakUtilization * 100)
+                + ", entry p50/p99/p99.9=" + entryLatency.percentile(50) / 1000 + "/" + entryLatency.percentile(99) / 1000
+                + "/" + entryLatency.percentile(99.9) / 1000 + "us"
+                + ", exit p50/p99/p99.9=" + exitLatency.percentile(50) / 1000 + "/" + exitLatency.percentile(99) / 1000
+                + "/" + exitLatency.percentile(99.9) / 1000 + "us"
+                + ", wall=" + wallMillis + "ms";
+    }
+}
+
+/*
+Discrete-event gate traffic simulator. Simulated time advances a minute at a time; every
+departure and arrival due in that minute is fired at the gates concurrently on a pool of
+gate threads, and the real latency of each EntrancePanel/ExitPanel call is recorded.
+Arrivals per minute are Poisson around the arrival curve, stays are exponential.
+Run with: java GateTrafficSimulator
+ */
+class GateTrafficSimulator {
+    private int floors;
+    private Map<ParkingSpotType, Integer> spotsPerFloor;
+    private int entrances;
+    private int exits;
+    private ArrivalCurve arrivalCurve;
+    private Map<VehicleType, Double> vehicleMix;
+    private double meanStayMinutes;
+    private long seed;
+
+    public GateTrafficSimulator(int floors, Map<ParkingSpotType, Integer> spotsPerFloor, int entrances, int exits,
+                                ArrivalCurve arrivalCurve, Map<VehicleType, Double> vehicleMix,
+                                double meanStayMinutes, long seed) {
+        this.floors = floors;
+        this.spotsPerFloor = spotsPerFloor;
+        this.entrances = entrances;
+        this.exits = exits;
+        this.arrivalCurve = arrivalCurve;
+        this.vehicleMix = vehicleMix;
+        this.meanStayMinutes = meanStayMinutes;
+        this.seed = seed;
+    }
+
+    public SimulationReport run(AllocationMode allocationMode, int startMinute, int simulatedMinutes)
+            throws InterruptedException {
+        Random random = new Random(seed);
+        ParkingLot parkingLot = new ParkingLot("simulated-" + allocationMode, entrances + exits);
+        List<EntrancePanel> entrancePanels = new ArrayList<>();
+        List<ExitPanel> exitPanels = new ArrayList<>();
+        int totalSpots = buildLot(parkingLot, allocationMode, entrancePanels, exitPanels);
+
+        SimulationReport report = new SimulationReport();
+        report.allocationMode = allocationMode;
+        PriorityQueue<long[]> departures = new PriorityQueue<>(Comparator.comparingLong(departure -> departure[0]));
+        List<ParkingTicket> ticketsById = new ArrayList<>();
+        ExecutorService gates = Executors.newFixedThreadPool(entrances + exits);
+        long vehicleNumber = 0;
+        double utilizationSum = 0;
+        long wallStart = System.nanoTime();
+        try {
+            for (int minute = startMinute; minute < startMinute + simulatedMinutes; minute++) {
+                List<Callable<Void>> exitCalls = new ArrayList<>();
+                while (!departures.isEmpty() && departures.peek()[0] <= minute) {
+                    ParkingTicket parkingTicket = ticketsById.get((int) departures.poll()[1]);
+                    ExitPanel exitPanel = exitPanels.get(random.nextInt(exitPanels.size()));
+                    exitCalls.add(() -> {
+                        long start = System.nanoTime();
+                        exitPanel.scanAndVacate(parkingTicket);
+                        report.exitLatency.record(System.nanoTime() - start);
+                        return null;
+                    });
+                }
+                report.exits += exitCalls.size();
+                gates.invokeAll(exitCalls);
+
+                int arrivals = poisson(random, arrivalCurve.arrivalsPerMinute(minute % (24 * 60)));
+                List<Callable<ParkingTicket>> entryCalls = new ArrayList<>();
+                for (int i = 0; i < arrivals; i++) {
+                    Vehicle vehicle = newVehicle(random, "SIM" + vehicleNumber++);
+                    EntrancePanel entrancePanel = entrancePanels.get(random.nextInt(entrancePanels.size()));
+                    entryCalls.add(() -> {
+                        long start = System.nanoTime();
+                        ParkingTicket parkingTicket = entrancePanel.getParkingTicket(vehicle);
+                        report.entryLatency.record(System.nanoTime() - start);
+                        return parkingTicket;
+                    });
+                }
+                report.arrivals += arrivals;
+                for (Future<ParkingTicket> entry : gates.invokeAll(entryCalls)) {
+                    ParkingTicket parkingTicket = get(entry);
+                    if (parkingTicket == null) {
+                        report.allocationFailures++;
+                        continue;
+                    }
+                    long stay = Math.max(1, Math.round(-meanStayMinutes * Math.log(1 - random.nextDouble())));
+                    departures.add(new long[]{minute + stay, ticketsById.size()});
+                    ticketsById.add(parkingTicket);
+                }
+
+                double utilization = 1.0 - (double) availableSpots(parkingLot) / totalSpots;
+                utilizationSum += utilization;
+                report.peakUtilization = Math.max(report.peakUtilization, utilization);
+            }
+        } finally {
+            gates.shutdown();
+            parkingLot.shutdown();
+        }
+        report.meanUtilization = utilizationSum / simulatedMinutes;
+        report.wallMillis = (System.nanoTime() - wallStart) / 1_000_000;
+        return report;
+    }
+
+    private int buildLot(ParkingLot parkingLot, AllocationMode allocationMode,
+                         List<EntrancePanel> entrancePanels, List<ExitPanel> exitPanels) {
+        int spotsOnFloor = spotsPerFloor.values().stream().mapToInt(Integer::intValue).sum();
+        Map<String, Integer> spotPositions = new HashMap<>();
+        int totalSpots = 0;
+        for (int floor = 0; floor < floors; floor++) {
+            String floorId = String.valueOf(floor);
+            SpotAllocationStrategy spotAllocationStrategy = allocationMode == AllocationMode.NEAREST_TO_ENTRANCE
+                    ? new NearestToEntranceAllocationStrategy() : new FreeListAllocationStrategy();
+            parkingLot.addParkingFloor(new ParkingFloor(floorId, spotAllocationStrategy, Math.max(spotsOnFloor, 1)));
+            int position = 0;
+            for (Map.Entry<ParkingSpotType, Integer> spotMix : spotsPerFloor.entrySet()) {
+                for (int i = 0; i < spotMix.getValue(); i++) {
+                    String spotId = floorId + "-" + spotMix.getKey() + "-" + i;
+                    spotPositions.put(spotId, position++);
+                    parkingLot.addParkingSpot(floorId, newSpot(spotMix.getKey(), spotId));
+                    totalSpots++;
+                }
+            }
+        }
+        for (int i = 0; i < entrances; i++) {
+            String entranceId = "entrance-" + i;
+            EntrancePanel entrancePanel = new EntrancePanel(entranceId, parkingLot);
+            parkingLot.addEntrancePanel(entrancePanel);
+            entrancePanels.add(entrancePanel);
+            // entrances spread evenly along each floor's row of spots
+            int entrancePosition = spotsOnFloor * i / entrances;
+            for (ParkingFloor parkingFloor : parkingLot.getParkingFloors()) {
+                if (parkingFloor.getSpotAllocationStrategy() instanceof NearestToEntranceAllocationStrategy)
+                    ((NearestToEntranceAllocationStrategy) parkingFloor.getSpotAllocationStrategy()).registerEntrance(
+                            entranceId, parkingSpot -> Math.abs(spotPositions.get(parkingSpot.getParkingSpotId()) - entrancePosition));
+            }
+        }
+        for (int i = 0; i < exits; i++) {
+            ExitPanel exitPanel = new ExitPanel("exit-" + i, parkingLot);
+            parkingLot.addExitPanel(exitPanel);
+            exitPanels.add(exitPanel);
+        }
+        return totalSpots;
+    }
+
+    private static long availableSpots(ParkingLot parkingLot) {
+        long available = 0;
+        for (ParkingSpotType parkingSpotType : ParkingSpotType.values()) {
+            available += parkingLot.getAvailableSpotCount(parkingSpotType);
+        }
+        return available;
+    }
+
+    private Vehicle newVehicle(Random random, String licenseNumber) {
+        double totalWeight = vehicleMix.values().stream().mapToDouble(Double::doubleValue).sum();
+        double pick = random.nextDouble() * totalWeight;
+        VehicleType vehicleType = VehicleType.CAR;
+        for (Map.Entry<VehicleType, Double> mix : vehicleMix.entrySet()) {
+            vehicleType = mix.getKey();
+            pick -= mix.getValue();
+            if (pick < 0)
+                break;
+        }
+        switch (vehicleType) {
+            case TRUCK:
+                return new Truck(licenseNumber);
+            case ELECTRIC:
+                return new ElectricCar(licenseNumber);
+            case VAN:
+                return new Van(licenseNumber);
+            case MOTORBIKE:
+                return new MotorBike(licenseNumber);
+            case EBIKE:
+                return new EBike(licenseNumber);
+            default:
+                return new Car(licenseNumber);
+        }
+    }
+
+    private static ParkingSpot newSpot(ParkingSpotType parkingSpotType, String spotId) {
+        switch (parkingSpotType) {
+            case ABLED:
+                return new AbledParkingSpot(spotId);
+            case LARGE:
+                return new LargeParkingSpot(spotId);
+            case MOTORBIKE:
+                return new MotorBikeParkingSpot(spotId);
+            case ELECTRIC:
+                return new ElectricParkingSpot(spotId);
+            case EBIKE:
+                return new EBikeParkingSpot(spotId);
+            default:
+                return new CarParkingSpot(spotId);
+        }
+    }
+
+    private static int poisson(Random random, double mean) {
+        if (mean > 50)
+            return (int) Math.max(0, Math.round(mean + Math.sqrt(mean) * random.nextGaussian()));
+        double limit = Math.exp(-mean);
+        double product = random.nextDouble();
+        int count = 0;
+        while (product > limit) {
+            product *= random.nextDouble();
+            count++;
+        }
+        return count;
+    }
+
+    private static <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (Exception e) {
+            throw new IllegalStateException("Gate call failed", e);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<ParkingSpotType, Integer> spotsPerFloor = new EnumMap<>(ParkingSpotType.class);
+        spotsPerFloor.put(ParkingSpotType.CAR, 600);
+        spotsPerFloor.put(ParkingSpotType.LARGE, 80);
+        spotsPerFloor.put(ParkingSpotType.ELECTRIC, 60);
+        spotsPerFloor.put(ParkingSpotType.MOTORBIKE, 200);
+        spotsPerFloor.put(ParkingSpotType.EBIKE, 60);
+
+        Map<VehicleType, Double> vehicleMix = new EnumMap<>(VehicleType.class);
+        vehicleMix.put(VehicleType.CAR, 0.6);
+        vehicleMix.put(VehicleType.ELECTRIC, 0.08);
+        vehicleMix.put(VehicleType.VAN, 0.05);
+        vehicleMix.put(VehicleType.TRUCK, 0.02);
+        vehicleMix.put(VehicleType.MOTORBIKE, 0.2);
+        vehicleMix.put(VehicleType.EBIKE, 0.05);
+
+        // morning rush around 09:00 plus an evening event surge
+        ArrivalCurve arrivalCurve = ArrivalCurve.surge(
+                ArrivalCurve.rush(5, 60, 9 * 60, 45), 18 * 60, 19 * 60, 80);
+
+        GateTrafficSimulator simulator = new GateTrafficSimulator(5, spotsPerFloor, 6, 4,
+                arrivalCurve, vehicleMix, 180, 42L);
+        for (AllocationMode allocationMode : AllocationMode.values()) {
+            System.out.println(simulator.run(allocationMode, 6 * 60, 16 * 60));
+        }
+    }
+}
 
 
 
 public class Main {
     public static void main(String[] args) {
-        ParkingLot parkingLot = ParkingLot.INSTANCE;
+        ParkingLotRepository parkingLotRepository = new ParkingLotRepository();
+        ParkingLot parkingLot = parkingLotRepository.addParkingLot(new ParkingLot());
+        String parkingLotId = parkingLot.getParkingLotId();
 
         Address address = new Address();
         address.setAddressLine1("Ram parking Complex");
@@ -399,63 +2237,62 @@ public class Main {
 
         parkingLot.setAddress(address);
         //Admin tests
-        Account adminAccount = new Admin();
         //Admin Case 1 - should be able to add parking floor case
-        ((Admin) adminAccount).addParkingFloor(new ParkingFloor("1"));
+        parkingLotRepository.addParkingFloor(parkingLotId, new ParkingFloor("1"));
         //Admin Case 2 - should be able to add parking floor case
-        ((Admin) adminAccount).addParkingFloor(new ParkingFloor("2"));
+        parkingLotRepository.addParkingFloor(parkingLotId, new ParkingFloor("2"));
 
         //Admin Case 3 - should be able to add entrance panel
-        EntrancePanel entrancePanel = new EntrancePanel("1");
-        ((Admin) adminAccount).addEntrancePanel(entrancePanel);
+        EntrancePanel entrancePanel = new EntrancePanel("1", parkingLot);
+        parkingLotRepository.addEntryPanel(parkingLotId, entrancePanel);
 
         //Admin Case 4 - should be able to add exit panel
-        ExitPanel exitPanel = new ExitPanel("1");
-        ((Admin) adminAccount).addExitPanel(exitPanel);
+        ExitPanel exitPanel = new ExitPanel("1", parkingLot);
+        parkingLotRepository.addExitPanel(parkingLotId, exitPanel);
 
         String floorId = parkingLot.getParkingFloors().get(0).getFloorId();
 
         ///Admin case 5 - should be able to add car parking spot
         ParkingSpot carSpot1 = new CarParkingSpot("c1");
-        ((Admin) adminAccount).addParkingSpot(floorId, carSpot1);
+        parkingLotRepository.addParkingSpot(parkingLotId, floorId, carSpot1);
         ///Admin case 6 - should be able to add bike parking spot
         ParkingSpot bikeSport = new MotorBikeParkingSpot("b1");
-        ((Admin) adminAccount).addParkingSpot(floorId, bikeSport);
+        parkingLotRepository.addParkingSpot(parkingLotId, floorId, bikeSport);
         ///Admin case 7 - should be able to add car parking spot
         ParkingSpot carSpot2 = new CarParkingSpot("c2");
-        ((Admin) adminAccount).addParkingSpot(floorId, carSpot2);
+        parkingLotRepository.addParkingSpot(parkingLotId, floorId, carSpot2);
 
         // Test case 1 - check for availability of parking lot - TRUE
-        System.out.println(ParkingLot.INSTANCE.canPark(VehicleType.CAR));
+        System.out.println(parkingLot.canPark(VehicleType.CAR));
 
-        // Test case 2 - check for availability of parking lot - FALSE
-        System.out.println(ParkingLot.INSTANCE.canPark(VehicleType.EBIKE));
+        // Test case 2 - check for availability of parking lot - TRUE, falls back to a car spot
+        System.out.println(parkingLot.canPark(VehicleType.EBIKE));
 
-        // Test case 3 - check for availability of parking lot - FALSE
-        System.out.println(ParkingLot.INSTANCE.canPark(VehicleType.ELECTRIC));
+        // Test case 3 - check for availability of parking lot - TRUE, falls back to a car spot
+        System.out.println(parkingLot.canPark(VehicleType.ELECTRIC));
 
         // TEST case 4 - Check if full
-        System.out.println(ParkingLot.INSTANCE.isFull());
+        System.out.println(parkingLot.isFull());
 
         // Test case 5 - get parking spot
         Vehicle vehicle = new Car("KA05MR2311");
-        ParkingSpot availableSpot = ParkingLot.INSTANCE.getParkingSpot(vehicle.getType());
+        ParkingSpot availableSpot = parkingLot.getParkingSpot(vehicle.getType());
         System.out.println(availableSpot.getParkingSpotType());
         System.out.println(availableSpot.getParkingSpotId());
 
         // Test case 6 - should not be able to get spot
         Vehicle van = new Van("KA01MR7804");
-        ParkingSpot vanSpot = ParkingLot.INSTANCE.getParkingSpot(van.getType());
+        ParkingSpot vanSpot = parkingLot.getParkingSpot(van.getType());
         System.out.println(null == vanSpot);
 
         //Test case 7 - Entrance Panel - 1
-        System.out.println(ParkingLot.INSTANCE.getEntrancePanels().size());
+        System.out.println(parkingLot.getEntrancePanels().size());
 
         // Test case - 8 - Should be able to get parking ticket
         ParkingTicket parkingTicket = entrancePanel.getParkingTicket(vehicle);
         System.out.println(parkingTicket.getAllocatedSpotId());
 
-        ((Admin) adminAccount).addParkingSpot(floorId, carSpot1);
+        parkingLotRepository.returnParkingSpotToService(parkingLotId, availableSpot.getParkingSpotId());
         // Test case - 9 - Should be able to get parking ticket
         Vehicle car = new Car("KA02MR6355");
         ParkingTicket parkingTicket1 = entrancePanel.getParkingTicket(car);
@@ -488,7 +2325,7 @@ public class Main {
         System.out.println(parkingTicket.getCharges() > 0);
 
         //Test case 16 - Now should be able to park car
-        System.out.println(ParkingLot.INSTANCE.canPark(VehicleType.CAR));
+        System.out.println(parkingLot.canPark(VehicleType.CAR));
 
         //Test case 17 - Should be able to vacate parked vehicle
         parkingTicket1 = exitPanel.scanAndVacate(parkingTicket1);
@@ -496,8 +2333,8 @@ public class Main {
         System.out.println(parkingTicket1.getCharges() > 0);
 
         //Test case 18 - check for slots count
-        System.out.println(ParkingLot.INSTANCE.getParkingFloors()
-                .get(0).getParkingSpots().get(ParkingSpotType.CAR).size());
+        System.out.println(parkingLot.getParkingFloors()
+                .get(0).getFreeSpotCount(ParkingSpotType.CAR));
 
         //Test case 19 - Payment
 //        Payment payment = new Payment(UUID.randomUUID().toString(),
@@ -507,8 +2344,8 @@ public class Main {
 
         //Test case 20 - vacate motorbike spot
         mtrTkt = exitPanel.scanAndVacate(mtrTkt);
-        System.out.println(ParkingLot.INSTANCE.getParkingFloors()
-                .get(0).getParkingSpots().get(ParkingSpotType.MOTORBIKE).size());
+        System.out.println(parkingLot.getParkingFloors()
+                .get(0).getFreeSpotCount(ParkingSpotType.MOTORBIKE));
         System.out.println(mtrTkt.getCharges());
     }
     }
@@ -1,6 +1,46 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 
 
 class User {
@@ -49,9 +89,52 @@ class User {
     }
 }
 
+/*
+Money is held as long minor units (cents) and percentages as basis points, so splitting and
+validation are exact integer arithmetic. Input with more fraction digits than that is rounded
+half up, e.g. "1.005" is 101 cents. A currency's minor unit is its ISO 4217 one: JPY amounts
+are whole yen and KWD amounts are fils (thousandths).
+ */
+class Money {
+    public static final int MINOR_UNITS_SCALE = 2;
+    public static final long BASIS_POINTS_PER_WHOLE = 10_000;
+    // expenses without an explicit currency are in this one
+    public static final String DEFAULT_CURRENCY = "INR";
+
+    public static long toMinorUnits(String amount) {
+        return new BigDecimal(amount).setScale(MINOR_UNITS_SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    public static long toMinorUnits(String amount, String currency) {
+        return new BigDecimal(amount).setScale(fractionDigits(currency), RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    public static long toBasisPoints(String percent) {
+        return new BigDecimal(percent).setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    public static double toMajorUnits(long minorUnits) {
+        return minorUnits / 100.0;
+    }
+
+    public static double toMajorUnits(long minorUnits, String currency) {
+        return minorUnits / Math.pow(10, fractionDigits(currency));
+    }
+
+    // codes the JDK does not know, or without a minor unit, are treated like the default currency
+    public static int fractionDigits(String currency) {
+        try {
+            int digits = Currency.getInstance(currency).getDefaultFractionDigits();
+            return digits >= 0 ? digits : MINOR_UNITS_SCALE;
+        } catch (IllegalArgumentException e) {
+            return MINOR_UNITS_SCALE;
+        }
+    }
+}
+
 abstract class Split {
     private User user;
-    double amount;
+    long amount;
 
     public Split(User user) {
         this.user = user;
@@ -65,11 +148,11 @@ abstract class Split {
         this.user = user;
     }
 
-    public double getAmount() {
+    public long getAmount() {
         return amount;
     }
 
-    public void setAmount(double amount) {
+    public void setAmount(long amount) {
         this.amount = amount;
     }
 }
@@ -83,26 +166,26 @@ class EqualSplit extends Split {
 
 class ExactSplit extends Split {
 
-    public ExactSplit(User user, double amount) {
+    public ExactSplit(User user, long amount) {
         super(user);
         this.amount = amount;
     }
 }
 
 class PercentSplit extends Split {
-    double percent;
+    long basisPoints;
 
-    public PercentSplit(User user, double percent) {
+    public PercentSplit(User user, long basisPoints) {
         super(user);
-        this.percent = percent;
+        this.basisPoints = basisPoints;
     }
 
-    public double getPercent() {
-        return percent;
+    public long getBasisPoints() {
+        return basisPoints;
     }
 
-    public void setPercent(double percent) {
-        this.percent = percent;
+    public void setBasisPoints(long basisPoints) {
+        this.basisPoints = basisPoints;
     }
 }
 
@@ -144,16 +227,20 @@ class ExpenseMetadata {
 
 abstract class Expense {
     private String id;
-    private double amount;
+    private long amount;
     private User paidBy;
     private List<Split> splits;
     private ExpenseMetadata metadata;
+    private long createdAt;
+    private boolean deleted;
+    private String currency = Money.DEFAULT_CURRENCY;
 
-    public Expense(double amount, User paidBy, List<Split> splits, ExpenseMetadata metadata) {
+    public Expense(long amount, User paidBy, List<Split> splits, ExpenseMetadata metadata) {
         this.amount = amount;
         this.paidBy = paidBy;
         this.splits = splits;
         this.metadata = metadata;
+        this.createdAt = System.currentTimeMillis();
     }
 
     public String getId() {
@@ -164,11 +251,11 @@ abstract class Expense {
         this.id = id;
     }
 
-    public double getAmount() {
+    public long getAmount() {
         return amount;
     }
 
-    public void setAmount(double amount) {
+    public void setAmount(long amount) {
         this.amount = amount;
     }
 
@@ -196,11 +283,35 @@ abstract class Expense {
         this.metadata = metadata;
     }
 
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
+
+    public void setCurrency(String currency) {
+        this.currency = currency;
+    }
+
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    public void setDeleted(boolean deleted) {
+        this.deleted = deleted;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+
     public abstract boolean validate();
 }
 
 class EqualExpense extends Expense {
-    public EqualExpense(double amount, User paidBy, List<Split> splits, ExpenseMetadata expenseMetadata) {
+    public EqualExpense(long amount, User paidBy, List<Split> splits, ExpenseMetadata expenseMetadata) {
         super(amount, paidBy, splits, expenseMetadata);
     }
 
@@ -217,7 +328,7 @@ class EqualExpense extends Expense {
 }
 
 class ExactExpense extends Expense {
-    public ExactExpense(double amount, User paidBy, List<Split> splits, ExpenseMetadata expenseMetadata) {
+    public ExactExpense(long amount, User paidBy, List<Split> splits, ExpenseMetadata expenseMetadata) {
         super(amount, paidBy, splits, expenseMetadata);
     }
 
@@ -229,8 +340,8 @@ class ExactExpense extends Expense {
             }
         }
 
-        double totalAmount = getAmount();
-        double sumSplitAmount = 0;
+        long totalAmount = getAmount();
+        long sumSplitAmount = 0;
         for (Split split : getSplits()) {
             ExactSplit exactSplit = (ExactSplit) split;
             sumSplitAmount += exactSplit.getAmount();
@@ -245,7 +356,7 @@ class ExactExpense extends Expense {
 }
 
 class PercentExpense extends Expense {
-    public PercentExpense(double amount, User paidBy, List<Split> splits, ExpenseMetadata expenseMetadata) {
+    public PercentExpense(long amount, User paidBy, List<Split> splits, ExpenseMetadata expenseMetadata) {
         super(amount, paidBy, splits, expenseMetadata);
     }
 
@@ -257,11 +368,11 @@ class PercentExpense extends Expense {
             }
         }
 
-        double totalPercent = 100;
-        double sumSplitPercent = 0;
+        long totalPercent = Money.BASIS_POINTS_PER_WHOLE;
+        long sumSplitPercent = 0;
         for (Split split : getSplits()) {
             PercentSplit exactSplit = (PercentSplit) split;
-            sumSplitPercent += exactSplit.getPercent();
+            sumSplitPercent += exactSplit.getBasisPoints();
         }
 
         if (totalPercent != sumSplitPercent) {
@@ -279,158 +390,2844 @@ class PercentExpense extends Expense {
 }
 
 class ExpenseService {
-    public static Expense createExpense(ExpenseType expenseType, double amount, User paidBy, List<Split> splits, ExpenseMetadata expenseMetadata) {
+    public static Expense createExpense(ExpenseType expenseType, long amount, User paidBy, List<Split> splits, ExpenseMetadata expenseMetadata) {
         switch (expenseType) {
             case EXACT:
                 return new ExactExpense(amount, paidBy, splits, expenseMetadata);
             case PERCENT:
-                for (Split split : splits) {
-                    PercentSplit percentSplit = (PercentSplit) split;
-                    split.setAmount((amount*percentSplit.getPercent())/100.0);
-                }
+                splitByPercent(amount, splits);
                 return new PercentExpense(amount, paidBy, splits, expenseMetadata);
             case EQUAL:
+                // leftover cents go one each to the first splits, in order; floorDiv keeps that true for refunds
                 int totalSplits = splits.size();
-                double splitAmount = ((double) Math.round(amount*100/totalSplits))/100.0;
-                for (Split split : splits) {
-                    split.setAmount(splitAmount);
+                long splitAmount = Math.floorDiv(amount, totalSplits);
+                long remainder = Math.floorMod(amount, totalSplits);
+                for (int i = 0; i < totalSplits; i++) {
+                    splits.get(i).setAmount(splitAmount + (i < remainder ? 1 : 0));
                 }
-                splits.get(0).setAmount(splitAmount + (amount - splitAmount*totalSplits));
                 return new EqualExpense(amount, paidBy, splits, expenseMetadata);
             default:
                 return null;
         }
     }
+
+    // largest remainder: floor every share, then hand leftover cents to the biggest fractional parts (ties by split order)
+    private static void splitByPercent(long amount, List<Split> splits) {
+        int totalSplits = splits.size();
+        long[] remainders = new long[totalSplits];
+        long allocated = 0;
+        for (int i = 0; i < totalSplits; i++) {
+            PercentSplit percentSplit = (PercentSplit) splits.get(i);
+            long scaled = Math.multiplyExact(amount, percentSplit.getBasisPoints());
+            percentSplit.setAmount(Math.floorDiv(scaled, Money.BASIS_POINTS_PER_WHOLE));
+            remainders[i] = Math.floorMod(scaled, Money.BASIS_POINTS_PER_WHOLE);
+            allocated += percentSplit.getAmount();
+        }
+        Integer[] order = new Integer[totalSplits];
+        for (int i = 0; i < totalSplits; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(remainders[b], remainders[a]));
+        for (int i = 0; i < totalSplits && allocated < amount; i++, allocated++) {
+            Split split = splits.get(order[i]);
+            split.setAmount(split.getAmount() + 1);
+        }
+    }
 }
 
-class ExpenseManager {
-    List<Expense> expenses;
-    Map<String, User> userMap;
-    Map<String, Map<String, Double> > balanceSheet;
+class UserIndex {
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final List<String> userIds = new ArrayList<>();
 
-    public ExpenseManager() {
-        expenses = new ArrayList<Expense>();
-        userMap = new HashMap<String, User>();
-        balanceSheet = new HashMap<String, Map<String, Double>>();
+    public int intern(String userId) {
+        Integer index = indexes.get(userId);
+        if (index == null) {
+            index = userIds.size();
+            indexes.put(userId, index);
+            userIds.add(userId);
+        }
+        return index;
     }
 
-    public void addUser(User user) {
-        userMap.put(user.getId(), user);
-        balanceSheet.put(user.getId(), new HashMap<String, Double>());
+    public int indexOf(String userId) {
+        Integer index = indexes.get(userId);
+        return index == null ? -1 : index;
     }
 
-    public void addExpense(ExpenseType expenseType, double amount, String paidBy, List<Split> splits, ExpenseMetadata expenseMetadata) {
-        Expense expense = ExpenseService.createExpense(expenseType, amount, userMap.get(paidBy), splits, expenseMetadata);
-        expenses.add(expense);
-        for (Split split : expense.getSplits()) {
-            String paidTo = split.getUser().getId();
-            Map<String, Double> balances = balanceSheet.get(paidBy);
-            if (!balances.containsKey(paidTo)) {
-                balances.put(paidTo, 0.0);
-            }
-            balances.put(paidTo, balances.get(paidTo) + split.getAmount());
+    public String userIdOf(int index) {
+        return userIds.get(index);
+    }
 
-            balances = balanceSheet.get(paidTo);
-            if (!balances.containsKey(paidBy)) {
-                balances.put(paidBy, 0.0);
+    public int size() {
+        return userIds.size();
+    }
+}
+
+interface BalanceVisitor {
+    void visit(int otherUser, long amount);
+}
+
+/*
+Pairwise balances in cents between interned users. getBalance(a, b) > 0 means b owes a.
+ */
+interface BalanceLedger {
+    void ensureUsers(int userCount);
+
+    // debtor now owes creditor amount more
+    void addDebt(int creditor, int debtor, long amount);
+
+    long getBalance(int user, int otherUser);
+
+    // visits every counterparty the user has a non-zero balance with
+    void forEachBalance(int user, BalanceVisitor visitor);
+}
+
+class DenseBalanceLedger implements BalanceLedger {
+    private int capacity;
+    private long[] balances = new long[0];
+
+    @Override
+    public void ensureUsers(int userCount) {
+        if (userCount <= capacity)
+            return;
+        int newCapacity = Math.max(userCount, Math.max(8, capacity * 2));
+        long[] grown = new long[newCapacity * newCapacity];
+        for (int user = 0; user < capacity; user++) {
+            System.arraycopy(balances, user * capacity, grown, user * newCapacity, capacity);
+        }
+        balances = grown;
+        capacity = newCapacity;
+    }
+
+    @Override
+    public void addDebt(int creditor, int debtor, long amount) {
+        balances[creditor * capacity + debtor] += amount;
+        balances[debtor * capacity + creditor] -= amount;
+    }
+
+    @Override
+    public long getBalance(int user, int otherUser) {
+        return balances[user * capacity + otherUser];
+    }
+
+    @Override
+    public void forEachBalance(int user, BalanceVisitor visitor) {
+        int row = user * capacity;
+        for (int otherUser = 0; otherUser < capacity; otherUser++) {
+            if (balances[row + otherUser] != 0)
+                visitor.visit(otherUser, balances[row + otherUser]);
+        }
+    }
+}
+
+/*
+One entry per pair (low, high) in an open-addressing long->long table, stored from the low
+user's side. Per-user adjacency lists make a single user's balances proportional to the
+number of people they share expenses with, not to the number of users.
+ */
+class SparseBalanceLedger implements BalanceLedger {
+    private static final long EMPTY = 0L;
+
+    private long[] keys = new long[1024];
+    private long[] values = new long[1024];
+    private int size;
+    private int[][] counterparties = new int[0][];
+    private int[] counterpartyCounts = new int[0];
+
+    @Override
+    public void ensureUsers(int userCount) {
+        if (userCount <= counterparties.length)
+            return;
+        int newLength = Math.max(userCount, counterparties.length * 2);
+        counterparties = Arrays.copyOf(counterparties, newLength);
+        counterpartyCounts = Arrays.copyOf(counterpartyCounts, newLength);
+    }
+
+    @Override
+    public void addDebt(int creditor, int debtor, long amount) {
+        if (creditor == debtor)
+            return;
+        int low = Math.min(creditor, debtor);
+        int high = Math.max(creditor, debtor);
+        long key = ((long) low << 32) | high;
+        int slot = findSlot(key);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            size++;
+            addCounterparty(low, high);
+            addCounterparty(high, low);
+            if (size * 2 > keys.length) {
+                rehash();
+                slot = findSlot(key);
             }
-            balances.put(paidBy, balances.get(paidBy) - split.getAmount());
         }
+        values[slot] += creditor == low ? amount : -amount;
     }
 
-    public void showBalance(String userId) {
-        boolean isEmpty = true;
-        for (Map.Entry<String, Double> userBalance : balanceSheet.get(userId).entrySet()) {
-            if (userBalance.getValue() != 0) {
-                isEmpty = false;
-                printBalance(userId, userBalance.getKey(), userBalance.getValue());
+    @Override
+    public long getBalance(int user, int otherUser) {
+        if (user == otherUser)
+            return 0;
+        int low = Math.min(user, otherUser);
+        int high = Math.max(user, otherUser);
+        int slot = findSlot(((long) low << 32) | high);
+        if (keys[slot] == EMPTY)
+            return 0;
+        return user == low ? values[slot] : -values[slot];
+    }
+
+    @Override
+    public void forEachBalance(int user, BalanceVisitor visitor) {
+        int[] others = counterparties[user];
+        for (int i = 0; i < counterpartyCounts[user]; i++) {
+            long balance = getBalance(user, others[i]);
+            if (balance != 0)
+                visitor.visit(others[i], balance);
+        }
+    }
+
+    private int findSlot(long key) {
+        int mask = keys.length - 1;
+        int slot = (int) (mix(key) & mask);
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void addCounterparty(int user, int otherUser) {
+        int[] others = counterparties[user];
+        if (others == null) {
+            others = new int[4];
+        } else if (counterpartyCounts[user] == others.length) {
+            others = Arrays.copyOf(others, others.length * 2);
+        }
+        others[counterpartyCounts[user]++] = otherUser;
+        counterparties[user] = others;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldValues.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = findSlot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
             }
         }
+    }
 
-        if (isEmpty) {
-            System.out.println("No balances");
+    private static long mix(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return key ^ (key >>> 32);
+    }
+}
+
+class Settlement {
+    private final int fromUser;
+    private final int toUser;
+    private final long amount;
+
+    public Settlement(int fromUser, int toUser, long amount) {
+        this.fromUser = fromUser;
+        this.toUser = toUser;
+        this.amount = amount;
+    }
+
+    public int getFromUser() {
+        return fromUser;
+    }
+
+    public int getToUser() {
+        return toUser;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+}
+
+/*
+Net position per user (positive = is owed money) kept up to date on every posted debt, so a
+simplify request only has to match creditors with debtors. Groups with at most
+EXACT_SOLVER_MAX_USERS unsettled users are solved exactly: the fewest transfers is the number
+of unsettled users minus the largest number of disjoint zero-sum subsets, found with a DP over
+subsets. Larger groups use a greedy matcher that always pairs the biggest creditor with the
+biggest debtor. The last plan is cached until the next posted debt.
+ */
+class DebtSimplifier {
+    public static final int EXACT_SOLVER_MAX_USERS = 12;
+
+    private long[] netPositions = new long[8];
+    private List<Settlement> cachedPlan;
+
+    public void ensureUsers(int userCount) {
+        if (userCount > netPositions.length)
+            netPositions = Arrays.copyOf(netPositions, Math.max(userCount, netPositions.length * 2));
+    }
+
+    public void recordDebt(int creditor, int debtor, long amount) {
+        netPositions[creditor] += amount;
+        netPositions[debtor] -= amount;
+        cachedPlan = null;
+    }
+
+    public long getNetPosition(int user) {
+        return netPositions[user];
+    }
+
+    public List<Settlement> simplify() {
+        if (cachedPlan != null)
+            return cachedPlan;
+        int unsettled = 0;
+        for (long position : netPositions) {
+            if (position != 0)
+                unsettled++;
         }
+        int[] users = new int[unsettled];
+        int count = 0;
+        for (int user = 0; user < netPositions.length; user++) {
+            if (netPositions[user] != 0)
+                users[count++] = user;
+        }
+        cachedPlan = Collections.unmodifiableList(unsettled <= EXACT_SOLVER_MAX_USERS ? solveExact(users) : solveGreedy(users));
+        return cachedPlan;
     }
 
-    public void showBalances() {
-        boolean isEmpty = true;
-        for (Map.Entry<String, Map<String, Double>> allBalances : balanceSheet.entrySet()) {
-            for (Map.Entry<String, Double> userBalance : allBalances.getValue().entrySet()) {
-                if (userBalance.getValue() > 0) {
-                    isEmpty = false;
-                    printBalance(allBalances.getKey(), userBalance.getKey(), userBalance.getValue());
+    private List<Settlement> solveGreedy(int[] users) {
+        PriorityQueue<long[]> creditors = new PriorityQueue<>((a, b) -> Long.compare(b[1], a[1]));
+        PriorityQueue<long[]> debtors = new PriorityQueue<>((a, b) -> Long.compare(b[1], a[1]));
+        for (int user : users) {
+            long position = netPositions[user];
+            if (position > 0)
+                creditors.add(new long[]{user, position});
+            else
+                debtors.add(new long[]{user, -position});
+        }
+        List<Settlement> settlements = new ArrayList<>();
+        while (!creditors.isEmpty() && !debtors.isEmpty()) {
+            long[] creditor = creditors.poll();
+            long[] debtor = debtors.poll();
+            long amount = Math.min(creditor[1], debtor[1]);
+            settlements.add(new Settlement((int) debtor[0], (int) creditor[0], amount));
+            creditor[1] -= amount;
+            debtor[1] -= amount;
+            if (creditor[1] > 0)
+                creditors.add(creditor);
+            if (debtor[1] > 0)
+                debtors.add(debtor);
+        }
+        return settlements;
+    }
+
+    private List<Settlement> solveExact(int[] users) {
+        int n = users.length;
+        int full = (1 << n) - 1;
+        long[] subsetSums = new long[full + 1];
+        int[] zeroSumGroups = new int[full + 1];
+        for (int mask = 1; mask <= full; mask++) {
+            int lowest = Integer.numberOfTrailingZeros(mask);
+            subsetSums[mask] = subsetSums[mask & (mask - 1)] + netPositions[users[lowest]];
+            int best = 0;
+            for (int rest = mask; rest != 0; rest &= rest - 1) {
+                best = Math.max(best, zeroSumGroups[mask & ~Integer.lowestOneBit(rest)]);
+            }
+            zeroSumGroups[mask] = best + (subsetSums[mask] == 0 ? 1 : 0);
+        }
+
+        // peel users off the full set along an optimal path; reversed, every zero prefix sum closes a group
+        int[] order = new int[n];
+        int mask = full;
+        for (int position = n - 1; position >= 0; position--) {
+            int closesGroup = subsetSums[mask] == 0 ? 1 : 0;
+            for (int rest = mask; rest != 0; rest &= rest - 1) {
+                int bit = Integer.numberOfTrailingZeros(rest);
+                if (zeroSumGroups[mask & ~(1 << bit)] + closesGroup == zeroSumGroups[mask]) {
+                    order[position] = users[bit];
+                    mask &= ~(1 << bit);
+                    break;
                 }
             }
         }
 
-        if (isEmpty) {
-            System.out.println("No balances");
+        // settle along the chain: each user passes its running balance to the next one
+        List<Settlement> settlements = new ArrayList<>();
+        long carried = 0;
+        for (int i = 0; i + 1 < n; i++) {
+            carried += netPositions[order[i]];
+            if (carried > 0)
+                settlements.add(new Settlement(order[i + 1], order[i], carried));
+            else if (carried < 0)
+                settlements.add(new Settlement(order[i], order[i + 1], -carried));
         }
+        return settlements;
+    }
+}
+
+class IntList {
+    private int[] values = new int[4];
+    private int size;
+
+    public void add(int value) {
+        if (size == values.length)
+            values = Arrays.copyOf(values, size * 2);
+        values[size++] = value;
     }
 
-    private void printBalance(String user1, String user2, double amount) {
-        String user1Name = userMap.get(user1).getName();
-        String user2Name = userMap.get(user2).getName();
-        if (amount < 0) {
-            System.out.println(user1Name + " owes " + user2Name + ": " + Math.abs(amount));
-        } else if (amount > 0) {
-            System.out.println(user2Name + " owes " + user1Name + ": " + Math.abs(amount));
+    public int get(int index) {
+        return values[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int last() {
+        return values[size - 1];
+    }
+
+    // index of the first value >= key; values must be ascending
+    public int lowerBound(int key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < key)
+                low = mid + 1;
+            else
+                high = mid;
         }
+        return low;
     }
 }
 
-public class Main {
-    public static void main(String[] args) {
+class ExpensePage {
+    public static final int FIRST_PAGE = Integer.MAX_VALUE;
+    public static final int NO_MORE_PAGES = -1;
 
-        ExpenseManager expenseManager = new ExpenseManager();
+    private final List<Expense> expenses;
+    private final int nextCursor;
 
-        expenseManager.addUser(new User("u1", "User1", "gaurav@workat.tech", "9876543210"));
-        expenseManager.addUser(new User("u2", "User2", "sagar@workat.tech", "9876543210"));
-        expenseManager.addUser(new User("u3", "User3", "hi@workat.tech", "9876543210"));
-        expenseManager.addUser(new User("u4", "User4", "mock-interviews@workat.tech", "9876543210"));
+    public ExpensePage(List<Expense> expenses, int nextCursor) {
+        this.expenses = expenses;
+        this.nextCursor = nextCursor;
+    }
 
-        Scanner scanner = new Scanner(System.in);
-        while (true) {
-            String command = scanner.nextLine();
-            String[] commands = command.split(" ");
-            String commandType = commands[0];
+    public List<Expense> getExpenses() {
+        return expenses;
+    }
 
-            switch (commandType) {
-                case "SHOW":
-                    if (commands.length == 1) {
-                        expenseManager.showBalances();
-                    } else {
-                        expenseManager.showBalance(commands[1]);
-                    }
-                    break;
-                case "EXPENSE":
-                    String paidBy = commands[1];
-                    Double amount = Double.parseDouble(commands[2]);
-                    int noOfUsers = Integer.parseInt(commands[3]);
-                    String expenseType = commands[4 + noOfUsers];
-                    List<Split> splits = new ArrayList<>();
-                    switch (expenseType) {
-                        case "EQUAL":
-                            for (int i = 0; i < noOfUsers; i++) {
-                                splits.add(new EqualSplit(expenseManager.userMap.get(commands[4 + i])));
-                            }
-                            expenseManager.addExpense(ExpenseType.EQUAL, amount, paidBy, splits, null);
-                            break;
-                        case "EXACT":
-                            for (int i = 0; i < noOfUsers; i++) {
-                                splits.add(new ExactSplit(expenseManager.userMap.get(commands[4 + i]), Double.parseDouble(commands[5 + noOfUsers + i])));
-                            }
-                            expenseManager.addExpense(ExpenseType.EXACT, amount, paidBy, splits, null);
-                            break;
-                        case "PERCENT":
-                            for (int i = 0; i < noOfUsers; i++) {
-                                splits.add(new PercentSplit(expenseManager.userMap.get(commands[4 + i]), Double.parseDouble(commands[5 + noOfUsers + i])));
-                            }
-                            expenseManager.addExpense(ExpenseType.PERCENT, amount, paidBy, splits, null);
-                            break;
-                    }
-                    break;
+    // pass back to fetch the next, older page
+    public int getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasMore() {
+        return nextCursor != NO_MORE_PAGES;
+    }
+}
+
+/*
+Posting lists of expense ordinals (positions in the group's expense list, so ascending in
+posting order) per member, per payer/participant pair and per lower-cased word of the
+metadata name and notes. A page is a binary search for the cursor plus a walk backwards, so
+its cost depends on the page size, not on how long the history is.
+ */
+class ExpenseHistoryIndex {
+    private final List<IntList> byUser = new ArrayList<>();
+    private final Map<Long, IntList> byPair = new HashMap<>();
+    private final Map<String, IntList> byTerm = new HashMap<>();
+
+    public void add(int ordinal, int payer, int[] participants, ExpenseMetadata metadata) {
+        addPosting(userPostings(payer), ordinal);
+        for (int participant : participants) {
+            addPosting(userPostings(participant), ordinal);
+            if (participant != payer)
+                addPosting(byPair.computeIfAbsent(pairKey(payer, participant), key -> new IntList()), ordinal);
+        }
+        if (metadata != null) {
+            indexText(metadata.getName(), ordinal);
+            indexText(metadata.getNotes(), ordinal);
+        }
+    }
+
+    public IntList forUser(int user) {
+        return user < byUser.size() ? byUser.get(user) : null;
+    }
+
+    public IntList forPair(int user, int otherUser) {
+        return byPair.get(pairKey(user, otherUser));
+    }
+
+    // expenses whose name or notes contain every word of the query
+    public IntList search(String query) {
+        IntList result = null;
+        for (String term : terms(query)) {
+            IntList postings = byTerm.get(term);
+            if (postings == null)
+                return null;
+            result = result == null ? postings : intersect(result, postings);
+        }
+        return result;
+    }
+
+    public static ExpensePage page(List<Expense> expenses, IntList postings, int cursor, int limit) {
+        List<Expense> page = new ArrayList<>(limit);
+        if (postings == null)
+            return new ExpensePage(page, ExpensePage.NO_MORE_PAGES);
+        int position = postings.lowerBound(cursor) - 1;
+        for (; position >= 0 && page.size() < limit; position--) {
+            Expense expense = expenses.get(postings.get(position));
+            if (!expense.isDeleted())
+                page.add(expense);
+        }
+        int nextCursor = position >= 0 ? postings.get(position + 1) : ExpensePage.NO_MORE_PAGES;
+        return new ExpensePage(page, nextCursor);
+    }
+
+    private IntList userPostings(int user) {
+        while (byUser.size() <= user) {
+            byUser.add(new IntList());
+        }
+        return byUser.get(user);
+    }
+
+    private void indexText(String text, int ordinal) {
+        if (text == null)
+            return;
+        for (String term : terms(text)) {
+            addPosting(byTerm.computeIfAbsent(term, key -> new IntList()), ordinal);
+        }
+    }
+
+    // one posting per expense even when a user or word appears twice in it
+    private static void addPosting(IntList postings, int ordinal) {
+        if (postings.size() == 0 || postings.last() != ordinal)
+            postings.add(ordinal);
+    }
+
+    private static List<String> terms(String text) {
+        List<String> terms = new ArrayList<>();
+        for (String term : text.toLowerCase(Locale.ROOT).split("[^\\p{Alnum}]+")) {
+            if (!term.isEmpty())
+                terms.add(term);
+        }
+        return terms;
+    }
+
+    private static IntList intersect(IntList first, IntList second) {
+        IntList result = new IntList();
+        int i = 0;
+        int j = 0;
+        while (i < first.size() && j < second.size()) {
+            if (first.get(i) < second.get(j))
+                i++;
+            else if (first.get(i) > second.get(j))
+                j++;
+            else {
+                result.add(first.get(i));
+                i++;
+                j++;
             }
         }
+        return result;
+    }
+
+    private static long pairKey(int user, int otherUser) {
+        return ((long) Math.min(user, otherUser) << 32) | Math.max(user, otherUser);
+    }
+}
+
+class CounterpartyBalance {
+    private final String userId;
+    private final long amount;
+
+    public CounterpartyBalance(String userId, long amount) {
+        this.userId = userId;
+        this.amount = amount;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    // positive: this counterparty owes the summarised user
+    public long getAmount() {
+        return amount;
+    }
+}
+
+class UserBalanceSummary {
+    private final String groupId;
+    private final String userId;
+    private final String currency;
+    private final long totalOwed;
+    private final long totalOwing;
+    private final List<CounterpartyBalance> topCounterparties;
+
+    public UserBalanceSummary(String groupId, String userId, String currency, long totalOwed, long totalOwing, List<CounterpartyBalance> topCounterparties) {
+        this.groupId = groupId;
+        this.userId = userId;
+        this.currency = currency;
+        this.totalOwed = totalOwed;
+        this.totalOwing = totalOwing;
+        this.topCounterparties = topCounterparties;
+    }
+
+    public String getGroupId() {
+        return groupId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    // every amount in the summary is in this currency's book; books are never netted together
+    public String getCurrency() {
+        return currency;
+    }
+
+    // what others owe this user
+    public long getTotalOwed() {
+        return totalOwed;
+    }
+
+    // what this user owes others
+    public long getTotalOwing() {
+        return totalOwing;
+    }
+
+    public long getNet() {
+        return totalOwed - totalOwing;
+    }
+
+    // largest balances first, at most BalanceSummaries.TOP_COUNTERPARTIES
+    public List<CounterpartyBalance> getTopCounterparties() {
+        return topCounterparties;
+    }
+}
+
+/*
+Per-member totals owed and owing, adjusted from the old and new pair balance on every posted
+debt, plus the TOP_COUNTERPARTIES largest balances by magnitude. The top list absorbs growth
+in place; when one of its entries shrinks, a bigger balance may now sit outside it, so the
+list is marked stale and rebuilt from the ledger on the next read.
+ */
+class BalanceSummaries {
+    public static final int TOP_COUNTERPARTIES = 5;
+
+    private long[] owed = new long[8];
+    private long[] owing = new long[8];
+    private int[][] topUsers = new int[8][];
+    private long[][] topMagnitudes = new long[8][];
+    private int[] topCounts = new int[8];
+    private boolean[] stale = new boolean[8];
+
+    public void ensureUsers(int userCount) {
+        if (userCount <= owed.length)
+            return;
+        int newLength = Math.max(userCount, owed.length * 2);
+        owed = Arrays.copyOf(owed, newLength);
+        owing = Arrays.copyOf(owing, newLength);
+        topUsers = Arrays.copyOf(topUsers, newLength);
+        topMagnitudes = Arrays.copyOf(topMagnitudes, newLength);
+        topCounts = Arrays.copyOf(topCounts, newLength);
+        stale = Arrays.copyOf(stale, newLength);
+    }
+
+    // balances are from user's side: positive means otherUser owes user
+    public void onBalanceChange(int user, int otherUser, long oldBalance, long newBalance) {
+        update(user, otherUser, oldBalance, newBalance);
+        update(otherUser, user, -oldBalance, -newBalance);
+    }
+
+    public UserBalanceSummary summarize(String groupId, String currency, int user, UserIndex members, BalanceLedger ledger) {
+        if (stale[user])
+            rebuildTop(user, ledger);
+        int count = topCounts[user];
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        long[] magnitudes = topMagnitudes[user];
+        Arrays.sort(order, (a, b) -> Long.compare(magnitudes[b], magnitudes[a]));
+        List<CounterpartyBalance> top = new ArrayList<>(count);
+        for (int i : order) {
+            int otherUser = topUsers[user][i];
+            top.add(new CounterpartyBalance(members.userIdOf(otherUser), ledger.getBalance(user, otherUser)));
+        }
+        return new UserBalanceSummary(groupId, members.userIdOf(user), currency, owed[user], owing[user], Collections.unmodifiableList(top));
+    }
+
+    private void update(int user, int otherUser, long oldBalance, long newBalance) {
+        owed[user] += Math.max(newBalance, 0) - Math.max(oldBalance, 0);
+        owing[user] += Math.max(-newBalance, 0) - Math.max(-oldBalance, 0);
+        if (stale[user])
+            return;
+        if (topUsers[user] == null) {
+            topUsers[user] = new int[TOP_COUNTERPARTIES];
+            topMagnitudes[user] = new long[TOP_COUNTERPARTIES];
+        }
+        long magnitude = Math.abs(newBalance);
+        int[] users = topUsers[user];
+        long[] magnitudes = topMagnitudes[user];
+        int count = topCounts[user];
+        int smallest = -1;
+        for (int i = 0; i < count; i++) {
+            if (users[i] == otherUser) {
+                if (magnitude < magnitudes[i])
+                    stale[user] = true;
+                else
+                    magnitudes[i] = magnitude;
+                return;
+            }
+            if (smallest < 0 || magnitudes[i] < magnitudes[smallest])
+                smallest = i;
+        }
+        if (magnitude == 0)
+            return;
+        if (count < TOP_COUNTERPARTIES) {
+            users[count] = otherUser;
+            magnitudes[count] = magnitude;
+            topCounts[user]++;
+        } else if (magnitude > magnitudes[smallest]) {
+            users[smallest] = otherUser;
+            magnitudes[smallest] = magnitude;
+        }
+    }
+
+    private void rebuildTop(int user, BalanceLedger ledger) {
+        topCounts[user] = 0;
+        stale[user] = false;
+        ledger.forEachBalance(user, (otherUser, amount) -> update(user, otherUser, 0, amount));
+        // update() also added the balances to the totals; undo that
+        ledger.forEachBalance(user, (otherUser, amount) -> {
+            owed[user] -= Math.max(amount, 0);
+            owing[user] -= Math.max(-amount, 0);
+        });
+    }
+}
+
+interface BalanceListener {
+    void onBalanceChanged(UserBalanceSummary summary);
+}
+
+class BalanceSubscription {
+    private final Runnable onCancel;
+
+    public BalanceSubscription(Runnable onCancel) {
+        this.onCancel = onCancel;
+    }
+
+    public void cancel() {
+        onCancel.run();
+    }
+}
+
+/*
+Pushes balance changes to subscribers. Groups only mark a member's book (currency) as changed;
+a dispatcher running every coalesce interval sends the current summary of each changed book
+once, so a burst of expenses reaches a client as a single event per currency. Delivery
+happens outside the group locks.
+ */
+class BalanceNotifier implements Closeable {
+    public static final long DEFAULT_COALESCE_MILLIS = 50;
+
+    private final Function<String, ExpenseGroup> groups;
+    private final long coalesceMillis;
+    private final Map<String, Map<String, List<BalanceListener>>> listeners = new ConcurrentHashMap<>();
+    // group -> member -> currencies changed since the last flush
+    private final Map<String, Map<String, Set<String>>> changed = new ConcurrentHashMap<>();
+    private ScheduledExecutorService dispatcher;
+
+    public BalanceNotifier(Function<String, ExpenseGroup> groups, long coalesceMillis) {
+        this.groups = groups;
+        this.coalesceMillis = coalesceMillis;
+    }
+
+    public BalanceSubscription subscribe(String groupId, String userId, BalanceListener listener) {
+        List<BalanceListener> userListeners = listeners.computeIfAbsent(groupId, id -> new ConcurrentHashMap<>())
+                .computeIfAbsent(userId, id -> new CopyOnWriteArrayList<>());
+        userListeners.add(listener);
+        startDispatcher();
+        return new BalanceSubscription(() -> userListeners.remove(listener));
+    }
+
+    public void markChanged(String groupId, String userId, String currency) {
+        Map<String, List<BalanceListener>> groupListeners = listeners.get(groupId);
+        if (groupListeners == null || !groupListeners.containsKey(userId))
+            return;
+        changed.computeIfAbsent(groupId, id -> new ConcurrentHashMap<>())
+                .computeIfAbsent(userId, id -> ConcurrentHashMap.newKeySet()).add(currency);
+    }
+
+    // delivers pending changes now; the dispatcher calls this every coalesce interval
+    public void flush() {
+        for (Map.Entry<String, Map<String, Set<String>>> groupChanges : changed.entrySet()) {
+            ExpenseGroup group = groups.apply(groupChanges.getKey());
+            for (Map.Entry<String, Set<String>> userChanges : groupChanges.getValue().entrySet()) {
+                String userId = userChanges.getKey();
+                // the per-member set stays in the map, so a concurrent markChanged never adds to a detached set
+                Iterator<String> currencies = userChanges.getValue().iterator();
+                while (currencies.hasNext()) {
+                    String currency = currencies.next();
+                    currencies.remove();
+                    deliver(groupChanges.getKey(), userId, group.getSummary(userId, currency));
+                }
+            }
+        }
+    }
+
+    private void deliver(String groupId, String userId, UserBalanceSummary summary) {
+        for (BalanceListener listener : listeners.get(groupId).get(userId)) {
+            // a throwing listener would otherwise cancel the scheduled dispatch for everyone
+            try {
+                listener.onBalanceChanged(summary);
+            } catch (RuntimeException e) {
+                System.err.println("Balance listener for " + userId + " failed: " + e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (dispatcher != null)
+            dispatcher.shutdown();
+    }
+
+    private synchronized void startDispatcher() {
+        if (dispatcher != null)
+            return;
+        dispatcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "balance-notifier");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dispatcher.scheduleWithFixedDelay(this::flush, coalesceMillis, coalesceMillis, TimeUnit.MILLISECONDS);
+    }
+}
+
+/*
+Immutable rates table: how many units of the base currency one unit of each currency buys.
+Loaded from lines of "<code> <rate>", e.g. "USD 83.25"; blank lines and # comments are skipped.
+ */
+class FxRateTable {
+    public static final FxRateTable EMPTY = new FxRateTable(Collections.emptyMap());
+
+    private final Map<String, Double> unitsOfBase;
+
+    public FxRateTable(Map<String, Double> unitsOfBase) {
+        this.unitsOfBase = Collections.unmodifiableMap(new HashMap<>(unitsOfBase));
+    }
+
+    public static FxRateTable load(Path path) throws IOException {
+        Map<String, Double> rates = new HashMap<>();
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] fields = line.split("\\s+");
+            rates.put(fields[0], Double.parseDouble(fields[1]));
+        }
+        return new FxRateTable(rates);
+    }
+
+    public boolean supports(String currency) {
+        return unitsOfBase.containsKey(currency);
+    }
+
+    // minor units of one currency to minor units of another, rounded to the nearest unit
+    public long convert(long amount, String fromCurrency, String toCurrency) {
+        if (fromCurrency.equals(toCurrency))
+            return amount;
+        double minorUnitRatio = Math.pow(10, Money.fractionDigits(toCurrency) - Money.fractionDigits(fromCurrency));
+        return Math.round(amount * rate(fromCurrency) / rate(toCurrency) * minorUnitRatio);
+    }
+
+    private double rate(String currency) {
+        Double rate = unitsOfBase.get(currency);
+        if (rate == null)
+            throw new IllegalArgumentException("No FX rate for " + currency);
+        return rate;
+    }
+}
+
+/*
+Readers take whatever table is current with a single volatile read; a reload builds a new
+table off to the side and swaps it in, so conversions never lock or see a half-loaded table.
+ */
+class CurrencyConverter {
+    private final AtomicReference<FxRateTable> rates = new AtomicReference<>(FxRateTable.EMPTY);
+
+    public FxRateTable current() {
+        return rates.get();
+    }
+
+    public void update(FxRateTable table) {
+        rates.set(table);
+    }
+
+    public void load(Path path) throws IOException {
+        update(FxRateTable.load(path));
+    }
+
+    public long convert(long amount, String fromCurrency, String toCurrency) {
+        return rates.get().convert(amount, fromCurrency, toCurrency);
+    }
+}
+
+/*
+Balances in one currency: the pair ledger and the simplifier and summaries kept beside it.
+Currencies are never netted against each other inside a group; conversion only happens when
+a view asks for it.
+ */
+class CurrencyBook {
+    // books beyond this many members switch from the n*n matrix to the sparse pair table
+    public static final int DENSE_LEDGER_MAX_USERS = 512;
+
+    private final String currency;
+    private BalanceLedger ledger = new DenseBalanceLedger();
+    private final DebtSimplifier debtSimplifier = new DebtSimplifier();
+    private final BalanceSummaries summaries = new BalanceSummaries();
+
+    public CurrencyBook(String currency) {
+        this.currency = currency;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
+
+    public BalanceLedger getLedger() {
+        return ledger;
+    }
+
+    public DebtSimplifier getDebtSimplifier() {
+        return debtSimplifier;
+    }
+
+    public BalanceSummaries getSummaries() {
+        return summaries;
+    }
+
+    public void ensureUsers(int userCount) {
+        if (ledger instanceof DenseBalanceLedger && userCount > DENSE_LEDGER_MAX_USERS) {
+            ledger = toSparse(ledger, userCount - 1);
+        }
+        ledger.ensureUsers(userCount);
+        debtSimplifier.ensureUsers(userCount);
+        summaries.ensureUsers(userCount);
+    }
+
+    public void postDebt(int creditor, int debtor, long amount) {
+        long oldBalance = ledger.getBalance(creditor, debtor);
+        ledger.addDebt(creditor, debtor, amount);
+        debtSimplifier.recordDebt(creditor, debtor, amount);
+        summaries.onBalanceChange(creditor, debtor, oldBalance, oldBalance + amount);
+    }
+
+    private static BalanceLedger toSparse(BalanceLedger dense, int userCount) {
+        SparseBalanceLedger sparse = new SparseBalanceLedger();
+        sparse.ensureUsers(userCount);
+        for (int user = 0; user < userCount; user++) {
+            int creditor = user;
+            dense.forEachBalance(user, (otherUser, amount) -> {
+                if (amount > 0)
+                    sparse.addDebt(creditor, otherUser, amount);
+            });
+        }
+        return sparse;
+    }
+}
+
+interface BalanceConsumer {
+    void accept(String userId, String otherUserId, long amount);
+}
+
+/*
+A group owns its own member index, expenses, ledger and simplifier, all guarded by one lock.
+Groups never share mutable state, so expenses for unrelated groups are posted in parallel and
+only writers to the same group contend.
+ */
+class ExpenseGroup {
+    // oldest idempotency keys are forgotten past this many; retries arrive long before that
+    public static final int MAX_IDEMPOTENCY_KEYS = 100_000;
+
+    private final String id;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<Expense> expenses = new ArrayList<>();
+    private final UserIndex memberIndex = new UserIndex();
+    private final Map<String, CurrencyBook> books = new LinkedHashMap<>();
+    private final ExpenseHistoryIndex historyIndex = new ExpenseHistoryIndex();
+    private final ExpenseLog expenseLog;
+    private volatile BalanceNotifier notifier;
+    // live (not deleted or superseded) expenses by id, including ones restored from a snapshot
+    private final Map<String, Expense> expensesById = new HashMap<>();
+    private final Map<String, String> idempotencyKeys = new LinkedHashMap<String, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_IDEMPOTENCY_KEYS;
+        }
+    };
+    private long nextExpenseNumber = 1;
+    // sequence number of the last logged or replayed change applied to this group
+    private long lastSequence;
+
+    public ExpenseGroup(String id) {
+        this(id, null);
+    }
+
+    public ExpenseGroup(String id, ExpenseLog expenseLog) {
+        this.id = id;
+        this.expenseLog = expenseLog;
+        books.put(Money.DEFAULT_CURRENCY, new CurrencyBook(Money.DEFAULT_CURRENCY));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setNotifier(BalanceNotifier notifier) {
+        this.notifier = notifier;
+    }
+
+    public List<String> getCurrencies() {
+        lock.lock();
+        try {
+            return new ArrayList<>(books.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // one summary per currency book the group has
+    public List<UserBalanceSummary> getSummaries(String userId) {
+        List<UserBalanceSummary> summaries = new ArrayList<>();
+        for (String currency : getCurrencies()) {
+            summaries.add(getSummary(userId, currency));
+        }
+        return summaries;
+    }
+
+    public UserBalanceSummary getSummary(String userId, String currency) {
+        lock.lock();
+        try {
+            int user = memberIndex.indexOf(userId);
+            CurrencyBook book = books.get(currency);
+            if (user < 0 || book == null)
+                return new UserBalanceSummary(id, userId, currency, 0, 0, Collections.emptyList());
+            return book.getSummaries().summarize(id, currency, user, memberIndex, book.getLedger());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void addMember(String userId) {
+        lock.lock();
+        try {
+            intern(userId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String post(Expense expense) {
+        return post(expense, null);
+    }
+
+    /*
+    Returns the new expense id. A repeated idempotency key returns the first call's id and changes
+    nothing. The fsync happens after the group lock is released, so it can be shared with other writers.
+     */
+    public String post(Expense expense, String idempotencyKey) {
+        long sequence;
+        lock.lock();
+        try {
+            String previousResult = idempotencyKey == null ? null : idempotencyKeys.get(idempotencyKey);
+            if (previousResult != null)
+                return previousResult;
+            expense.setId(Long.toString(nextExpenseNumber++));
+            sequence = log(new ExpenseLogEntry(ExpenseLogOperation.POST, idempotencyKey, expense, null));
+            apply(expense);
+            remember(idempotencyKey, expense.getId());
+        } finally {
+            lock.unlock();
+        }
+        sync(sequence);
+        return expense.getId();
+    }
+
+    // one lock acquisition and one fsync for the whole batch
+    public void postAll(List<Expense> batch) {
+        long sequence = 0;
+        lock.lock();
+        try {
+            for (Expense expense : batch) {
+                expense.setId(Long.toString(nextExpenseNumber++));
+                sequence = log(new ExpenseLogEntry(ExpenseLogOperation.POST, null, expense, null));
+                apply(expense);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!batch.isEmpty())
+            sync(sequence);
+    }
+
+    // reverses the expense's deltas; false if no live expense has that id
+    public boolean delete(String expenseId, String idempotencyKey) {
+        long sequence;
+        lock.lock();
+        try {
+            if (idempotencyKey != null && idempotencyKeys.containsKey(idempotencyKey))
+                return true;
+            Expense expense = expensesById.get(expenseId);
+            if (expense == null)
+                return false;
+            sequence = log(new ExpenseLogEntry(ExpenseLogOperation.DELETE, idempotencyKey, null, expense));
+            unapply(expense);
+            remember(idempotencyKey, expenseId);
+        } finally {
+            lock.unlock();
+        }
+        sync(sequence);
+        return true;
+    }
+
+    // swaps in the replacement under the same id: inverse deltas of the old version, then the new ones
+    public boolean edit(String expenseId, Expense replacement, String idempotencyKey) {
+        long sequence;
+        lock.lock();
+        try {
+            if (idempotencyKey != null && idempotencyKeys.containsKey(idempotencyKey))
+                return true;
+            Expense expense = expensesById.get(expenseId);
+            if (expense == null)
+                return false;
+            // an expense keeps the currency it was created in
+            replacement.setId(expenseId);
+            replacement.setCurrency(expense.getCurrency());
+            sequence = log(new ExpenseLogEntry(ExpenseLogOperation.EDIT, idempotencyKey, replacement, expense));
+            unapply(expense);
+            apply(replacement);
+            remember(idempotencyKey, expenseId);
+        } finally {
+            lock.unlock();
+        }
+        sync(sequence);
+        return true;
+    }
+
+    // recovery path: applies a logged change unless the snapshot already covers it
+    public void replay(ExpenseLogEntry entry, long sequence) {
+        lock.lock();
+        try {
+            if (sequence <= lastSequence)
+                return;
+            Expense previous = entry.getPrevious();
+            if (previous != null)
+                unapply(expensesById.getOrDefault(previous.getId(), previous));
+            Expense expense = entry.getExpense();
+            if (expense != null) {
+                apply(expense);
+                nextExpenseNumber = Math.max(nextExpenseNumber, Long.parseLong(expense.getId()) + 1);
+            }
+            remember(entry.getIdempotencyKey(), expense != null ? expense.getId() : previous.getId());
+            lastSequence = sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void writeSnapshot(DataOutputStream out) throws IOException {
+        lock.lock();
+        try {
+            out.writeUTF(id);
+            out.writeLong(lastSequence);
+            out.writeLong(nextExpenseNumber);
+            out.writeInt(idempotencyKeys.size());
+            for (Map.Entry<String, String> key : idempotencyKeys.entrySet()) {
+                out.writeUTF(key.getKey());
+                out.writeUTF(key.getValue());
+            }
+            out.writeInt(memberIndex.size());
+            for (int user = 0; user < memberIndex.size(); user++) {
+                out.writeUTF(memberIndex.userIdOf(user));
+            }
+            out.writeInt(books.size());
+            for (CurrencyBook book : books.values()) {
+                List<long[]> debts = new ArrayList<>();
+                for (int user = 0; user < memberIndex.size(); user++) {
+                    int creditor = user;
+                    book.getLedger().forEachBalance(user, (otherUser, amount) -> {
+                        if (amount > 0)
+                            debts.add(new long[]{creditor, otherUser, amount});
+                    });
+                }
+                out.writeUTF(book.getCurrency());
+                out.writeInt(debts.size());
+                for (long[] debt : debts) {
+                    out.writeInt((int) debt[0]);
+                    out.writeInt((int) debt[1]);
+                    out.writeLong(debt[2]);
+                }
+            }
+            // only the versions the index still serves, in posting order, so the snapshot grows with
+            // the live expenses rather than the whole history; the flag is kept for older snapshots
+            List<Expense> live = new ArrayList<>(expensesById.size());
+            for (Expense expense : expenses) {
+                if (!expense.isDeleted())
+                    live.add(expense);
+            }
+            out.writeInt(live.size());
+            for (Expense expense : live) {
+                out.writeBoolean(false);
+                ExpenseLog.encode(out, expense);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static ExpenseGroup readSnapshot(DataInputStream in, ExpenseLog expenseLog, Function<String, User> users, boolean withExpenses) throws IOException {
+        ExpenseGroup group = new ExpenseGroup(in.readUTF(), expenseLog);
+        group.lastSequence = in.readLong();
+        group.nextExpenseNumber = in.readLong();
+        int keys = in.readInt();
+        for (int i = 0; i < keys; i++) {
+            group.idempotencyKeys.put(in.readUTF(), in.readUTF());
+        }
+        int members = in.readInt();
+        for (int i = 0; i < members; i++) {
+            group.intern(in.readUTF());
+        }
+        int bookCount = in.readInt();
+        for (int i = 0; i < bookCount; i++) {
+            CurrencyBook book = group.book(in.readUTF());
+            int debts = in.readInt();
+            for (int j = 0; j < debts; j++) {
+                int creditor = in.readInt();
+                int debtor = in.readInt();
+                long amount = in.readLong();
+                book.postDebt(creditor, debtor, amount);
+            }
+        }
+        int expenseCount = withExpenses ? in.readInt() : 0;
+        for (int i = 0; i < expenseCount; i++) {
+            boolean deleted = in.readBoolean();
+            Expense expense = ExpenseLog.decode(in, users);
+            expense.setDeleted(deleted);
+            group.restore(expense);
+        }
+        return group;
+    }
+
+    public List<Expense> getExpenses() {
+        lock.lock();
+        try {
+            return new ArrayList<>(expenses);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // newest first; pass ExpensePage.FIRST_PAGE, then each page's next cursor
+    public ExpensePage getUserExpenses(String userId, int cursor, int limit) {
+        lock.lock();
+        try {
+            int user = memberIndex.indexOf(userId);
+            return ExpenseHistoryIndex.page(expenses, user < 0 ? null : historyIndex.forUser(user), cursor, limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // expenses where one of the two paid and the other had a share
+    public ExpensePage getExpensesBetween(String userId, String otherUserId, int cursor, int limit) {
+        lock.lock();
+        try {
+            int user = memberIndex.indexOf(userId);
+            int otherUser = memberIndex.indexOf(otherUserId);
+            IntList postings = user < 0 || otherUser < 0 ? null : historyIndex.forPair(user, otherUser);
+            return ExpenseHistoryIndex.page(expenses, postings, cursor, limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ExpensePage searchExpenses(String query, int cursor, int limit) {
+        lock.lock();
+        try {
+            return ExpenseHistoryIndex.page(expenses, historyIndex.search(query), cursor, limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean forEachBalance(String userId, BalanceConsumer consumer) {
+        return forEachBalance(Money.DEFAULT_CURRENCY, userId, consumer);
+    }
+
+    // non-zero balances of one member in one currency; returns false if there were none
+    public boolean forEachBalance(String currency, String userId, BalanceConsumer consumer) {
+        lock.lock();
+        try {
+            int user = memberIndex.indexOf(userId);
+            CurrencyBook book = books.get(currency);
+            if (user < 0 || book == null)
+                return false;
+            boolean[] found = {false};
+            book.getLedger().forEachBalance(user, (otherUser, amount) -> {
+                found[0] = true;
+                consumer.accept(userId, memberIndex.userIdOf(otherUser), amount);
+            });
+            return found[0];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean forEachDebt(BalanceConsumer consumer) {
+        return forEachDebt(Money.DEFAULT_CURRENCY, consumer);
+    }
+
+    // every debt in one currency once, from the creditor's side
+    public boolean forEachDebt(String currency, BalanceConsumer consumer) {
+        lock.lock();
+        try {
+            CurrencyBook book = books.get(currency);
+            if (book == null)
+                return false;
+            boolean[] found = {false};
+            for (int user = 0; user < memberIndex.size(); user++) {
+                String userId = memberIndex.userIdOf(user);
+                book.getLedger().forEachBalance(user, (otherUser, amount) -> {
+                    if (amount > 0) {
+                        found[0] = true;
+                        consumer.accept(userId, memberIndex.userIdOf(otherUser), amount);
+                    }
+                });
+            }
+            return found[0];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean forEachSettlement(BalanceConsumer consumer) {
+        return forEachSettlement(Money.DEFAULT_CURRENCY, consumer);
+    }
+
+    // simplified settlements in one currency, from the receiver's side
+    public boolean forEachSettlement(String currency, BalanceConsumer consumer) {
+        lock.lock();
+        try {
+            CurrencyBook book = books.get(currency);
+            if (book == null)
+                return false;
+            List<Settlement> settlements = book.getDebtSimplifier().simplify();
+            for (Settlement settlement : settlements) {
+                consumer.accept(memberIndex.userIdOf(settlement.getToUser()),
+                        memberIndex.userIdOf(settlement.getFromUser()), settlement.getAmount());
+            }
+            return !settlements.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // one member's balances across every currency, converted with a single rates snapshot and netted per counterparty
+    public boolean forEachBalanceIn(String userId, String currency, FxRateTable rates, BalanceConsumer consumer) {
+        lock.lock();
+        try {
+            int user = memberIndex.indexOf(userId);
+            if (user < 0)
+                return false;
+            long[] converted = new long[memberIndex.size()];
+            boolean[] touched = new boolean[memberIndex.size()];
+            for (CurrencyBook book : books.values()) {
+                book.getLedger().forEachBalance(user, (otherUser, amount) -> {
+                    converted[otherUser] += rates.convert(amount, book.getCurrency(), currency);
+                    touched[otherUser] = true;
+                });
+            }
+            boolean found = false;
+            for (int otherUser = 0; otherUser < converted.length; otherUser++) {
+                if (touched[otherUser] && converted[otherUser] != 0) {
+                    found = true;
+                    consumer.accept(userId, memberIndex.userIdOf(otherUser), converted[otherUser]);
+                }
+            }
+            return found;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long log(ExpenseLogEntry entry) {
+        if (expenseLog != null)
+            lastSequence = expenseLog.append(id, entry);
+        return lastSequence;
+    }
+
+    private void sync(long sequence) {
+        if (expenseLog != null)
+            expenseLog.sync(sequence);
+    }
+
+    private void remember(String idempotencyKey, String result) {
+        if (idempotencyKey != null)
+            idempotencyKeys.put(idempotencyKey, result);
+    }
+
+    private void apply(Expense expense) {
+        int ordinal = expenses.size();
+        expenses.add(expense);
+        expensesById.put(expense.getId(), expense);
+        CurrencyBook book = book(expense.getCurrency());
+        int payer = intern(expense.getPaidBy().getId());
+        int[] participants = new int[expense.getSplits().size()];
+        for (int i = 0; i < participants.length; i++) {
+            Split split = expense.getSplits().get(i);
+            int paidTo = intern(split.getUser().getId());
+            participants[i] = paidTo;
+            if (paidTo != payer) {
+                book.postDebt(payer, paidTo, split.getAmount());
+            }
+        }
+        historyIndex.add(ordinal, payer, participants, expense.getMetadata());
+        notifyParticipants(expense);
+    }
+
+    // snapshot path: the ledger was loaded from the snapshot's balances, so only history is rebuilt
+    private void restore(Expense expense) {
+        int ordinal = expenses.size();
+        expenses.add(expense);
+        if (!expense.isDeleted())
+            expensesById.put(expense.getId(), expense);
+        int payer = intern(expense.getPaidBy().getId());
+        int[] participants = new int[expense.getSplits().size()];
+        for (int i = 0; i < participants.length; i++) {
+            participants[i] = intern(expense.getSplits().get(i).getUser().getId());
+        }
+        historyIndex.add(ordinal, payer, participants, expense.getMetadata());
+    }
+
+    // exact inverse of apply's ledger deltas, O(splits)
+    private void unapply(Expense expense) {
+        CurrencyBook book = book(expense.getCurrency());
+        int payer = intern(expense.getPaidBy().getId());
+        for (Split split : expense.getSplits()) {
+            int paidTo = intern(split.getUser().getId());
+            if (paidTo != payer) {
+                book.postDebt(payer, paidTo, -split.getAmount());
+            }
+        }
+        expense.setDeleted(true);
+        expensesById.remove(expense.getId());
+        notifyParticipants(expense);
+    }
+
+    private void notifyParticipants(Expense expense) {
+        BalanceNotifier currentNotifier = notifier;
+        if (currentNotifier == null)
+            return;
+        currentNotifier.markChanged(id, expense.getPaidBy().getId(), expense.getCurrency());
+        for (Split split : expense.getSplits()) {
+            currentNotifier.markChanged(id, split.getUser().getId(), expense.getCurrency());
+        }
+    }
+
+    private CurrencyBook book(String currency) {
+        CurrencyBook book = books.get(currency);
+        if (book == null) {
+            book = new CurrencyBook(currency);
+            book.ensureUsers(memberIndex.size());
+            books.put(currency, book);
+        }
+        return book;
+    }
+
+    private int intern(String userId) {
+        int index = memberIndex.indexOf(userId);
+        if (index >= 0)
+            return index;
+        index = memberIndex.intern(userId);
+        for (CurrencyBook book : books.values()) {
+            book.ensureUsers(memberIndex.size());
+        }
+        return index;
+    }
+}
+
+class ImportReport {
+    private final long linesRead;
+    private final long imported;
+    private final long rejected;
+    private final long bytesRead;
+    private final long elapsedNanos;
+
+    public ImportReport(long linesRead, long imported, long rejected, long bytesRead, long elapsedNanos) {
+        this.linesRead = linesRead;
+        this.imported = imported;
+        this.rejected = rejected;
+        this.bytesRead = bytesRead;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public long getLinesRead() {
+        return linesRead;
+    }
+
+    public long getImported() {
+        return imported;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public double getExpensesPerSecond() {
+        return elapsedNanos == 0 ? 0 : imported * 1_000_000_000.0 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Imported %d expenses (%d rejected) from %d lines, %d bytes in %.1f ms (%.0f expenses/s)",
+                imported, rejected, linesRead, bytesRead, elapsedNanos / 1_000_000.0, getExpensesPerSecond());
+    }
+}
+
+/*
+Resolves user ids straight from the input bytes, so the importer never builds a String per token.
+ */
+class UserIdTable {
+    private final byte[][] ids;
+    private final User[] users;
+
+    public UserIdTable(Collection<User> allUsers) {
+        int capacity = Integer.highestOneBit(Math.max(4, allUsers.size() * 2)) << 1;
+        ids = new byte[capacity][];
+        users = new User[capacity];
+        for (User user : allUsers) {
+            byte[] id = user.getId().getBytes(StandardCharsets.UTF_8);
+            int slot = hash(id, 0, id.length) & (capacity - 1);
+            while (ids[slot] != null) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            ids[slot] = id;
+            users[slot] = user;
+        }
+    }
+
+    public User lookup(ByteBuffer buffer, int start, int end) {
+        int mask = ids.length - 1;
+        for (int slot = hash(buffer, start, end) & mask; ids[slot] != null; slot = (slot + 1) & mask) {
+            if (matches(ids[slot], buffer, start, end))
+                return users[slot];
+        }
+        return null;
+    }
+
+    private static boolean matches(byte[] id, ByteBuffer buffer, int start, int end) {
+        if (id.length != end - start)
+            return false;
+        for (int i = 0; i < id.length; i++) {
+            if (id[i] != buffer.get(start + i))
+                return false;
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes, int start, int end) {
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int hash(ByteBuffer buffer, int start, int end) {
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + buffer.get(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
+
+/*
+Bulk loader for files in the EXPENSE command format, one expense per line, with an optional
+leading EXPENSE keyword and spaces, tabs or commas between fields:
+    u1 1000 4 u1 u2 u3 u4 EQUAL
+    u1,1250,2,u2,u3,EXACT,370,880
+The file is memory-mapped in windows and tokenized in place; amounts are parsed as fixed point
+straight from the bytes. Lines that do not parse or validate are counted as rejected and skipped.
+Valid expenses are posted to the target group in batches of BATCH_SIZE under one lock acquisition.
+ */
+class ExpenseImporter {
+    public static final int BATCH_SIZE = 4096;
+    private static final int WINDOW_BYTES = 64 << 20;
+    private static final long INVALID = Long.MIN_VALUE;
+
+    private final ExpenseManager expenseManager;
+    private int[] tokenStarts = new int[64];
+    private int[] tokenEnds = new int[64];
+
+    public ExpenseImporter(ExpenseManager expenseManager) {
+        this.expenseManager = expenseManager;
+    }
+
+    public ImportReport importFile(Path path, String groupId) throws IOException {
+        long startNanos = System.nanoTime();
+        UserIdTable userIds = new UserIdTable(expenseManager.userMap.values());
+        ExpenseGroup group = expenseManager.getOrCreateGroup(groupId);
+        List<Expense> batch = new ArrayList<>(BATCH_SIZE);
+        long linesRead = 0;
+        long imported = 0;
+        long rejected = 0;
+        long fileSize;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            fileSize = channel.size();
+            long windowStart = 0;
+            while (windowStart < fileSize) {
+                int windowLength = (int) Math.min(WINDOW_BYTES, fileSize - windowStart);
+                boolean lastWindow = windowStart + windowLength == fileSize;
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+                int lineStart = 0;
+                for (int i = 0; i < windowLength; i++) {
+                    if (window.get(i) != '\n')
+                        continue;
+                    if (parseLine(window, lineStart, i, userIds, batch))
+                        linesRead++;
+                    lineStart = i + 1;
+                    if (batch.size() == BATCH_SIZE) {
+                        imported += flush(group, batch);
+                    }
+                }
+                if (lastWindow && lineStart < windowLength) {
+                    if (parseLine(window, lineStart, windowLength, userIds, batch))
+                        linesRead++;
+                    lineStart = windowLength;
+                }
+                if (lineStart == 0 && !lastWindow)
+                    throw new IOException("Line longer than " + WINDOW_BYTES + " bytes at offset " + windowStart);
+                windowStart += lineStart;
+            }
+        }
+        imported += flush(group, batch);
+        rejected = linesRead - imported;
+        return new ImportReport(linesRead, imported, rejected, fileSize, System.nanoTime() - startNanos);
+    }
+
+    private static long flush(ExpenseGroup group, List<Expense> batch) {
+        int size = batch.size();
+        if (size > 0) {
+            group.postAll(batch);
+            batch.clear();
+        }
+        return size;
+    }
+
+    // returns false for blank lines; a non-blank line that fails to parse is still counted as read
+    private boolean parseLine(ByteBuffer line, int start, int end, UserIdTable userIds, List<Expense> batch) {
+        int tokens = tokenize(line, start, end);
+        if (tokens == 0)
+            return false;
+        int first = tokenEquals(line, 0, "EXPENSE") ? 1 : 0;
+        if (tokens - first < 4)
+            return true;
+        User paidBy = userIds.lookup(line, tokenStarts[first], tokenEnds[first]);
+        long amount = parseFixed(line, first + 1, Money.MINOR_UNITS_SCALE);
+        long userCount = parseFixed(line, first + 2, 0);
+        if (paidBy == null || amount == INVALID || userCount <= 0 || first + 3 + userCount >= tokens)
+            return true;
+        int typeToken = first + 3 + (int) userCount;
+        ExpenseType expenseType;
+        if (tokenEquals(line, typeToken, "EQUAL"))
+            expenseType = ExpenseType.EQUAL;
+        else if (tokenEquals(line, typeToken, "EXACT"))
+            expenseType = ExpenseType.EXACT;
+        else if (tokenEquals(line, typeToken, "PERCENT"))
+            expenseType = ExpenseType.PERCENT;
+        else
+            return true;
+        int expectedTokens = typeToken + 1 + (expenseType == ExpenseType.EQUAL ? 0 : (int) userCount);
+        if (tokens != expectedTokens)
+            return true;
+
+        List<Split> splits = new ArrayList<>((int) userCount);
+        for (int i = 0; i < userCount; i++) {
+            User user = userIds.lookup(line, tokenStarts[first + 3 + i], tokenEnds[first + 3 + i]);
+            if (user == null)
+                return true;
+            if (expenseType == ExpenseType.EQUAL) {
+                splits.add(new EqualSplit(user));
+                continue;
+            }
+            long value = parseFixed(line, typeToken + 1 + i, Money.MINOR_UNITS_SCALE);
+            if (value == INVALID)
+                return true;
+            splits.add(expenseType == ExpenseType.EXACT ? new ExactSplit(user, value) : new PercentSplit(user, value));
+        }
+        Expense expense = ExpenseService.createExpense(expenseType, amount, paidBy, splits, null);
+        if (expense != null && expense.validate())
+            batch.add(expense);
+        return true;
+    }
+
+    private int tokenize(ByteBuffer line, int start, int end) {
+        int tokens = 0;
+        int i = start;
+        while (i < end) {
+            while (i < end && isSeparator(line.get(i))) {
+                i++;
+            }
+            if (i == end)
+                break;
+            if (tokens == tokenStarts.length) {
+                tokenStarts = Arrays.copyOf(tokenStarts, tokens * 2);
+                tokenEnds = Arrays.copyOf(tokenEnds, tokens * 2);
+            }
+            tokenStarts[tokens] = i;
+            while (i < end && !isSeparator(line.get(i))) {
+                i++;
+            }
+            tokenEnds[tokens++] = i;
+        }
+        return tokens;
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ' ' || b == ',' || b == '\t' || b == '\r';
+    }
+
+    private boolean tokenEquals(ByteBuffer line, int token, String expected) {
+        int start = tokenStarts[token];
+        if (tokenEnds[token] - start != expected.length())
+            return false;
+        for (int i = 0; i < expected.length(); i++) {
+            if (line.get(start + i) != expected.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    // non-negative decimal with at most scale fraction digits, scaled to a long
+    private long parseFixed(ByteBuffer line, int token, int scale) {
+        long value = 0;
+        int fractionDigits = -1;
+        for (int i = tokenStarts[token]; i < tokenEnds[token]; i++) {
+            byte b = line.get(i);
+            if (b == '.' && fractionDigits < 0 && scale > 0) {
+                fractionDigits = 0;
+                continue;
+            }
+            if (b < '0' || b > '9' || fractionDigits == scale || value > (Long.MAX_VALUE - 9) / 10)
+                return INVALID;
+            value = value * 10 + (b - '0');
+            if (fractionDigits >= 0)
+                fractionDigits++;
+        }
+        for (int i = Math.max(fractionDigits, 0); i < scale; i++) {
+            value *= 10;
+        }
+        return value;
+    }
+}
+
+enum ExpenseLogOperation {
+    POST,
+    DELETE,
+    EDIT
+}
+
+/*
+One logged change to a group. DELETE carries the removed expense and EDIT both versions, so
+replay can apply the inverse deltas even when the original expense is older than the snapshot.
+ */
+class ExpenseLogEntry {
+    private final ExpenseLogOperation operation;
+    private final String idempotencyKey;
+    private final Expense expense;
+    private final Expense previous;
+
+    public ExpenseLogEntry(ExpenseLogOperation operation, String idempotencyKey, Expense expense, Expense previous) {
+        this.operation = operation;
+        this.idempotencyKey = idempotencyKey;
+        this.expense = expense;
+        this.previous = previous;
+    }
+
+    public ExpenseLogOperation getOperation() {
+        return operation;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    // the posted expense, the new version of an edit, or null for a delete
+    public Expense getExpense() {
+        return expense;
+    }
+
+    // the deleted expense or the old version of an edit
+    public Expense getPrevious() {
+        return previous;
+    }
+}
+
+/*
+Durable history of changes to groups, one record per post, edit or delete:
+    [int payloadLength][int crc32][payload]
+in segment files named expenses-<first sequence>.log. Appends only write; sync(sequence) makes
+a record durable with group commit: the first waiting thread forces the channel for everything
+appended so far and every writer it covered returns without a force of its own.
+
+takeSnapshot rolls over to a new segment and then writes each group's ledger and live expenses;
+deleted and superseded versions are left out, so after a restart history only shows what was
+still live at the snapshot plus whatever the later segments replay. Every record in the older segments was appended under its group's lock before the roll-over,
+so the snapshot covers them, and recovery only reads segments after it. Per group, records already reflected
+in that group's snapshot (sequence <= its last sequence) are skipped. Segments the snapshot
+covers are deleted once it is in place.
+
+A torn or corrupt record, including a length that could not fit, ends its segment and the
+segment is truncated there. If that was not the last segment, replay stops: the later segments
+are renamed to *.discarded rather than applied over the gap.
+ */
+class ExpenseLog implements Closeable {
+    private static final String SEGMENT_PREFIX = "expenses-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String DISCARDED_SUFFIX = ".discarded";
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+    // bounds the buffer a corrupt length field can make recovery allocate
+    private static final int MAX_RECORD_BYTES = 16 << 20;
+    private static final int SNAPSHOT_MAGIC = 0x53574C32;
+    // snapshots from before expenses were stored in them: balances only, no history
+    private static final int BALANCES_ONLY_SNAPSHOT_MAGIC = 0x53574C31;
+
+    private final Path directory;
+    private final long snapshotInterval;
+    private final Object syncLock = new Object();
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
+    private FileChannel segment;
+    private long appendedSequence;
+    private long snapshotSequence;
+    private volatile long durableSequence;
+
+    public ExpenseLog(Path directory, long snapshotInterval) {
+        this.directory = directory;
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    public interface ReplayConsumer {
+        void accept(long sequence, String groupId, ExpenseLogEntry entry);
+    }
+
+    /*
+    Loads the latest snapshot into groups, replays the segments after it, then opens a fresh
+    segment for appends. Must be called once before the first append.
+     */
+    public long recover(Map<String, ExpenseGroup> groups, Function<String, User> users, ReplayConsumer consumer) {
+        try {
+            Files.createDirectories(directory);
+            Path snapshot = directory.resolve(SNAPSHOT_FILE);
+            if (Files.exists(snapshot)) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+                    int magic = in.readInt();
+                    if (magic != SNAPSHOT_MAGIC && magic != BALANCES_ONLY_SNAPSHOT_MAGIC)
+                        throw new IOException("Not an expense snapshot: " + snapshot);
+                    snapshotSequence = in.readLong();
+                    int groupCount = in.readInt();
+                    for (int i = 0; i < groupCount; i++) {
+                        ExpenseGroup group = ExpenseGroup.readSnapshot(in, this, users, magic == SNAPSHOT_MAGIC);
+                        groups.put(group.getId(), group);
+                    }
+                }
+            }
+            appendedSequence = snapshotSequence;
+            long[] replayed = {0};
+            ReplayConsumer counting = (sequence, groupId, entry) -> {
+                consumer.accept(sequence, groupId, entry);
+                replayed[0]++;
+            };
+            List<Path> segments = listSegments();
+            for (int i = 0; i < segments.size(); i++) {
+                if (i + 1 < segments.size() && firstSequence(segments.get(i + 1)) <= snapshotSequence + 1) {
+                    Files.delete(segments.get(i));
+                    continue;
+                }
+                if (!replaySegment(segments.get(i), users, counting)) {
+                    for (Path later : segments.subList(i + 1, segments.size())) {
+                        Files.move(later, later.resolveSibling(later.getFileName() + DISCARDED_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    break;
+                }
+            }
+            durableSequence = appendedSequence;
+            segment = openSegment(appendedSequence + 1);
+            return replayed[0];
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized long append(String groupId, ExpenseLogEntry entry) {
+        long sequence = appendedSequence + 1;
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(payload);
+            out.writeLong(sequence);
+            out.writeUTF(groupId);
+            out.writeByte(entry.getOperation().ordinal());
+            writeNullable(out, entry.getIdempotencyKey());
+            if (entry.getPrevious() != null)
+                encode(out, entry.getPrevious());
+            if (entry.getExpense() != null)
+                encode(out, entry.getExpense());
+            byte[] bytes = payload.toByteArray();
+            if (bytes.length > MAX_RECORD_BYTES)
+                throw new IllegalArgumentException("Log record of " + bytes.length + " bytes exceeds " + MAX_RECORD_BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            ByteBuffer record = ByteBuffer.allocate(8 + bytes.length);
+            record.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes).flip();
+            while (record.hasRemaining()) {
+                segment.write(record);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        appendedSequence = sequence;
+        return sequence;
+    }
+
+    public void sync(long sequence) {
+        if (durableSequence >= sequence)
+            return;
+        synchronized (syncLock) {
+            if (durableSequence >= sequence)
+                return;
+            long target;
+            FileChannel channel;
+            synchronized (this) {
+                target = appendedSequence;
+                channel = segment;
+            }
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            durableSequence = target;
+        }
+    }
+
+    public synchronized boolean isSnapshotDue() {
+        return appendedSequence - snapshotSequence >= snapshotInterval;
+    }
+
+    // returns false if another thread is already writing a snapshot
+    public boolean takeSnapshot(Collection<ExpenseGroup> groups) {
+        if (!snapshotting.compareAndSet(false, true))
+            return false;
+        try {
+            long coveredSequence = rollOver();
+            Path temp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+                List<ExpenseGroup> snapshotGroups = new ArrayList<>(groups);
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeLong(coveredSequence);
+                out.writeInt(snapshotGroups.size());
+                for (ExpenseGroup group : snapshotGroups) {
+                    group.writeSnapshot(out);
+                }
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temp, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (this) {
+                snapshotSequence = coveredSequence;
+            }
+            for (Path old : listSegments()) {
+                if (firstSequence(old) <= coveredSequence)
+                    Files.deleteIfExists(old);
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            snapshotting.set(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (segment != null) {
+                segment.force(false);
+                segment.close();
+                durableSequence = appendedSequence;
+            }
+        }
+    }
+
+    private long rollOver() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                segment.force(false);
+                segment.close();
+                durableSequence = appendedSequence;
+                segment = openSegment(appendedSequence + 1);
+                return appendedSequence;
+            }
+        }
+    }
+
+    private FileChannel openSegment(long firstSequence) throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> {
+                        String name = path.getFileName().toString();
+                        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+                    })
+                    .sorted(Comparator.comparingLong(ExpenseLog::firstSequence))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    // false if the segment had to be truncated at a torn or corrupt record
+    private boolean replaySegment(Path path, Function<String, User> users, ReplayConsumer consumer) throws IOException {
+        long size = Files.size(path);
+        long validBytes = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_BYTES || length > size - validBytes - 8)
+                        break;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != checksum)
+                        break;
+                } catch (EOFException e) {
+                    break;
+                }
+                validBytes += 8 + payload.length;
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                long sequence = record.readLong();
+                String groupId = record.readUTF();
+                appendedSequence = Math.max(appendedSequence, sequence);
+                if (sequence <= snapshotSequence)
+                    continue;
+                ExpenseLogOperation operation = ExpenseLogOperation.values()[record.readByte()];
+                String idempotencyKey = readNullable(record);
+                Expense previous = operation == ExpenseLogOperation.POST ? null : decode(record, users);
+                Expense expense = operation == ExpenseLogOperation.DELETE ? null : decode(record, users);
+                consumer.accept(sequence, groupId, new ExpenseLogEntry(operation, idempotencyKey, expense, previous));
+            }
+        }
+        if (size == validBytes)
+            return true;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(validBytes);
+        }
+        return false;
+    }
+
+    static void encode(DataOutputStream out, Expense expense) throws IOException {
+        writeNullable(out, expense.getId());
+        ExpenseType expenseType = expense instanceof ExactExpense ? ExpenseType.EXACT
+                : expense instanceof PercentExpense ? ExpenseType.PERCENT : ExpenseType.EQUAL;
+        out.writeByte(expenseType.ordinal());
+        out.writeLong(expense.getAmount());
+        out.writeLong(expense.getCreatedAt());
+        out.writeUTF(expense.getCurrency());
+        out.writeUTF(expense.getPaidBy().getId());
+        out.writeInt(expense.getSplits().size());
+        for (Split split : expense.getSplits()) {
+            out.writeUTF(split.getUser().getId());
+            out.writeLong(split.getAmount());
+            out.writeLong(split instanceof PercentSplit ? ((PercentSplit) split).getBasisPoints() : 0);
+        }
+        ExpenseMetadata metadata = expense.getMetadata();
+        out.writeBoolean(metadata != null);
+        if (metadata != null) {
+            writeNullable(out, metadata.getName());
+            writeNullable(out, metadata.getImgUrl());
+            writeNullable(out, metadata.getNotes());
+        }
+    }
+
+    static Expense decode(DataInputStream in, Function<String, User> users) throws IOException {
+        String id = readNullable(in);
+        ExpenseType expenseType = ExpenseType.values()[in.readByte()];
+        long amount = in.readLong();
+        long createdAt = in.readLong();
+        String currency = in.readUTF();
+        User paidBy = users.apply(in.readUTF());
+        int splitCount = in.readInt();
+        List<Split> splits = new ArrayList<>(splitCount);
+        for (int i = 0; i < splitCount; i++) {
+            User user = users.apply(in.readUTF());
+            long splitAmount = in.readLong();
+            long basisPoints = in.readLong();
+            Split split = expenseType == ExpenseType.EXACT ? new ExactSplit(user, splitAmount)
+                    : expenseType == ExpenseType.PERCENT ? new PercentSplit(user, basisPoints) : new EqualSplit(user);
+            split.setAmount(splitAmount);
+            splits.add(split);
+        }
+        ExpenseMetadata metadata = in.readBoolean() ? new ExpenseMetadata(readNullable(in), readNullable(in), readNullable(in)) : null;
+        Expense expense;
+        switch (expenseType) {
+            case EXACT:
+                expense = new ExactExpense(amount, paidBy, splits, metadata);
+                break;
+            case PERCENT:
+                expense = new PercentExpense(amount, paidBy, splits, metadata);
+                break;
+            default:
+                expense = new EqualExpense(amount, paidBy, splits, metadata);
+        }
+        expense.setId(id);
+        expense.setCreatedAt(createdAt);
+        expense.setCurrency(currency);
+        return expense;
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
+
+class ExpenseManager implements Closeable {
+    // every registered user belongs to this group; the group-less API reads and writes it
+    public static final String DEFAULT_GROUP_ID = "default";
+
+    Map<String, User> userMap;
+    Map<String, ExpenseGroup> groups;
+    // null keeps everything in memory only
+    ExpenseLog expenseLog;
+    BalanceNotifier balanceNotifier;
+    CurrencyConverter currencyConverter;
+
+    public ExpenseManager() {
+        this(null);
+    }
+
+    public ExpenseManager(ExpenseLog expenseLog) {
+        this.expenseLog = expenseLog;
+        userMap = new ConcurrentHashMap<String, User>();
+        groups = new ConcurrentHashMap<String, ExpenseGroup>();
+        balanceNotifier = new BalanceNotifier(groups::get, BalanceNotifier.DEFAULT_COALESCE_MILLIS);
+        currencyConverter = new CurrencyConverter();
+        getOrCreateGroup(DEFAULT_GROUP_ID);
+    }
+
+    /*
+    Restores groups from the log's latest snapshot and tail. Users named in the log but not
+    registered yet are added with their id as name.
+     */
+    public long recover() {
+        if (expenseLog == null)
+            return 0;
+        long replayed = expenseLog.recover(groups, this::userForRecovery,
+                (sequence, groupId, entry) -> getOrCreateGroup(groupId).replay(entry, sequence));
+        for (ExpenseGroup group : groups.values()) {
+            group.setNotifier(balanceNotifier);
+        }
+        for (User user : userMap.values()) {
+            groups.get(DEFAULT_GROUP_ID).addMember(user.getId());
+        }
+        return replayed;
+    }
+
+    public void snapshot() {
+        if (expenseLog != null)
+            expenseLog.takeSnapshot(groups.values());
+    }
+
+    // stops balance notifications and makes everything logged so far durable
+    @Override
+    public void close() throws IOException {
+        balanceNotifier.close();
+        if (expenseLog != null)
+            expenseLog.close();
+    }
+
+    public void addUser(User user) {
+        userMap.put(user.getId(), user);
+        groups.get(DEFAULT_GROUP_ID).addMember(user.getId());
+    }
+
+    public ExpenseGroup createGroup(String groupId, List<String> memberIds) {
+        ExpenseGroup group = getOrCreateGroup(groupId);
+        for (String memberId : memberIds) {
+            group.addMember(memberId);
+        }
+        return group;
+    }
+
+    public ExpenseGroup getGroup(String groupId) {
+        return groups.get(groupId);
+    }
+
+    public ExpenseGroup getOrCreateGroup(String groupId) {
+        return groups.computeIfAbsent(groupId, id -> {
+            ExpenseGroup group = new ExpenseGroup(id, expenseLog);
+            group.setNotifier(balanceNotifier);
+            return group;
+        });
+    }
+
+    public void addExpense(ExpenseType expenseType, long amount, String paidBy, List<Split> splits, ExpenseMetadata expenseMetadata) {
+        addExpense(DEFAULT_GROUP_ID, expenseType, amount, paidBy, splits, expenseMetadata);
+    }
+
+    public String addExpense(String groupId, ExpenseType expenseType, long amount, String paidBy, List<Split> splits, ExpenseMetadata expenseMetadata) {
+        return addExpense(groupId, expenseType, amount, paidBy, splits, expenseMetadata, null);
+    }
+
+    // returns the expense id; retrying with the same idempotency key returns the same id without posting again
+    public String addExpense(String groupId, ExpenseType expenseType, long amount, String paidBy, List<Split> splits, ExpenseMetadata expenseMetadata, String idempotencyKey) {
+        return addExpense(groupId, Money.DEFAULT_CURRENCY, expenseType, amount, paidBy, splits, expenseMetadata, idempotencyKey);
+    }
+
+    public String addExpense(String groupId, String currency, ExpenseType expenseType, long amount, String paidBy, List<Split> splits, ExpenseMetadata expenseMetadata, String idempotencyKey) {
+        Expense expense = ExpenseService.createExpense(expenseType, amount, userMap.get(paidBy), splits, expenseMetadata);
+        expense.setCurrency(currency);
+        String expenseId = getOrCreateGroup(groupId).post(expense, idempotencyKey);
+        snapshotIfDue();
+        return expenseId;
+    }
+
+    // a payment from one member to another, recorded as an exact expense so it shows up in history
+    public String settleUp(String groupId, String fromUserId, String toUserId, long amount, String idempotencyKey) {
+        return settleUp(groupId, Money.DEFAULT_CURRENCY, fromUserId, toUserId, amount, idempotencyKey);
+    }
+
+    public String settleUp(String groupId, String currency, String fromUserId, String toUserId, long amount, String idempotencyKey) {
+        List<Split> splits = new ArrayList<>();
+        splits.add(new ExactSplit(userMap.get(toUserId), amount));
+        return addExpense(groupId, currency, ExpenseType.EXACT, amount, fromUserId, splits,
+                new ExpenseMetadata("Settle up", null, null), idempotencyKey);
+    }
+
+    public boolean deleteExpense(String groupId, String expenseId, String idempotencyKey) {
+        ExpenseGroup group = groups.get(groupId);
+        boolean deleted = group != null && group.delete(expenseId, idempotencyKey);
+        snapshotIfDue();
+        return deleted;
+    }
+
+    public boolean editExpense(String groupId, String expenseId, ExpenseType expenseType, long amount, String paidBy, List<Split> splits, ExpenseMetadata expenseMetadata, String idempotencyKey) {
+        ExpenseGroup group = groups.get(groupId);
+        if (group == null)
+            return false;
+        Expense replacement = ExpenseService.createExpense(expenseType, amount, userMap.get(paidBy), splits, expenseMetadata);
+        boolean edited = group.edit(expenseId, replacement, idempotencyKey);
+        snapshotIfDue();
+        return edited;
+    }
+
+    private void snapshotIfDue() {
+        if (expenseLog != null && expenseLog.isSnapshotDue())
+            snapshot();
+    }
+
+    public UserBalanceSummary getSummary(String groupId, String userId, String currency) {
+        return getOrCreateGroup(groupId).getSummary(userId, currency);
+    }
+
+    public List<UserBalanceSummary> getSummaries(String groupId, String userId) {
+        return getOrCreateGroup(groupId).getSummaries(userId);
+    }
+
+    public BalanceSubscription subscribe(String groupId, String userId, BalanceListener listener) {
+        return balanceNotifier.subscribe(groupId, userId, listener);
+    }
+
+    public void showSummary(String userId) {
+        for (UserBalanceSummary summary : getSummaries(DEFAULT_GROUP_ID, userId)) {
+            String currency = summary.getCurrency();
+            System.out.println(userMap.get(userId).getName() + " is owed " + formatAmount(summary.getTotalOwed(), currency)
+                    + ", owes " + formatAmount(summary.getTotalOwing(), currency));
+            BalanceConsumer printer = balancePrinter(summary.getCurrency());
+            for (CounterpartyBalance counterparty : summary.getTopCounterparties()) {
+                printer.accept(userId, counterparty.getUserId(), counterparty.getAmount());
+            }
+        }
+    }
+
+    public void showHistory(String userId, String otherUserId, int limit) {
+        ExpenseGroup group = groups.get(DEFAULT_GROUP_ID);
+        ExpensePage page = otherUserId == null
+                ? group.getUserExpenses(userId, ExpensePage.FIRST_PAGE, limit)
+                : group.getExpensesBetween(userId, otherUserId, ExpensePage.FIRST_PAGE, limit);
+        for (Expense expense : page.getExpenses()) {
+            System.out.println(expense.getId() + ": " + expense.getPaidBy().getName() + " paid " + formatAmount(expense.getAmount(), expense.getCurrency())
+                    + " split with " + expense.getSplits().size());
+        }
+
+        if (page.getExpenses().isEmpty()) {
+            System.out.println("No expenses");
+        }
+    }
+
+    public void showBalance(String userId) {
+        showBalance(DEFAULT_GROUP_ID, userId);
+    }
+
+    public void showBalance(String groupId, String userId) {
+        ExpenseGroup group = groups.get(groupId);
+        boolean found = false;
+        if (group != null) {
+            for (String currency : group.getCurrencies()) {
+                found |= group.forEachBalance(currency, userId, balancePrinter(currency));
+            }
+        }
+
+        if (!found) {
+            System.out.println("No balances");
+        }
+    }
+
+    // every currency converted into one, e.g. the user's home currency
+    public void showBalanceIn(String userId, String currency) {
+        ExpenseGroup group = groups.get(DEFAULT_GROUP_ID);
+        try {
+            if (!group.forEachBalanceIn(userId, currency, currencyConverter.current(), balancePrinter(currency))) {
+                System.out.println("No balances");
+            }
+        } catch (IllegalArgumentException e) {
+            // every amount is converted before anything prints, so a missing rate prints nothing else
+            System.out.println(e.getMessage());
+        }
+    }
+
+    public void showBalances() {
+        showBalances(DEFAULT_GROUP_ID);
+    }
+
+    public void showBalances(String groupId) {
+        ExpenseGroup group = groups.get(groupId);
+        boolean found = false;
+        if (group != null) {
+            for (String currency : group.getCurrencies()) {
+                found |= group.forEachDebt(currency, balancePrinter(currency));
+            }
+        }
+
+        if (!found) {
+            System.out.println("No balances");
+        }
+    }
+
+    public void showSimplifiedBalances() {
+        showSimplifiedBalances(DEFAULT_GROUP_ID);
+    }
+
+    public void showSimplifiedBalances(String groupId) {
+        ExpenseGroup group = groups.get(groupId);
+        boolean found = false;
+        if (group != null) {
+            for (String currency : group.getCurrencies()) {
+                found |= group.forEachSettlement(currency, balancePrinter(currency));
+            }
+        }
+
+        if (!found) {
+            System.out.println("No balances");
+        }
+    }
+
+    private User userForRecovery(String userId) {
+        return userMap.computeIfAbsent(userId, id -> new User(id, id, null, null));
+    }
+
+    private BalanceConsumer balancePrinter(String currency) {
+        return (user1, user2, amount) -> printBalance(user1, user2, amount, currency);
+    }
+
+    private void printBalance(String user1, String user2, long amount, String currency) {
+        String user1Name = userMap.get(user1).getName();
+        String user2Name = userMap.get(user2).getName();
+        if (amount < 0) {
+            System.out.println(user1Name + " owes " + user2Name + ": " + formatAmount(Math.abs(amount), currency));
+        } else if (amount > 0) {
+            System.out.println(user2Name + " owes " + user1Name + ": " + formatAmount(amount, currency));
+        }
+    }
+
+    // amounts in the default currency print bare, others get their code appended
+    private static String formatAmount(long amount, String currency) {
+        if (currency.equals(Money.DEFAULT_CURRENCY))
+            return String.valueOf(Money.toMajorUnits(amount));
+        return Money.toMajorUnits(amount, currency) + " " + currency;
+    }
+}
+
+/*
+The map-of-maps balance sheet ExpenseManager used to keep, reproduced so the benchmark can
+report the ledger against it on the same workload.
+ */
+class BaselineBalanceSheet {
+    private final List<Expense> expenses = new ArrayList<>();
+    private final Map<String, Map<String, Double>> balanceSheet = new HashMap<>();
+
+    public void addUser(String userId) {
+        balanceSheet.put(userId, new HashMap<String, Double>());
+    }
+
+    public void addExpense(Expense expense) {
+        expenses.add(expense);
+        String paidBy = expense.getPaidBy().getId();
+        for (Split split : expense.getSplits()) {
+            String paidTo = split.getUser().getId();
+            double amount = Money.toMajorUnits(split.getAmount());
+            Map<String, Double> balances = balanceSheet.get(paidBy);
+            balances.put(paidTo, balances.getOrDefault(paidTo, 0.0) + amount);
+            balances = balanceSheet.get(paidTo);
+            balances.put(paidBy, balances.getOrDefault(paidBy, 0.0) - amount);
+        }
+    }
+
+    public void showBalances() {
+        for (Map.Entry<String, Map<String, Double>> allBalances : balanceSheet.entrySet()) {
+            for (Map.Entry<String, Double> userBalance : allBalances.getValue().entrySet()) {
+                if (userBalance.getValue() > 0)
+                    System.out.println(userBalance.getKey() + " owes " + allBalances.getKey() + ": " + userBalance.getValue());
+            }
+        }
+    }
+}
+
+/*
+Pre-generated expenses for one group: users are picked from a Zipf distribution so a few
+members account for most expenses, split types are mixed evenly, and EXACT/PERCENT shares
+are random partitions of the total.
+ */
+class SyntheticWorkload {
+    private static final double ZIPF_EXPONENT = 1.1;
+    private static final int MAX_PARTICIPANTS = 8;
+
+    final int groupSize;
+    final int[] payers;
+    final ExpenseType[] types;
+    final long[] amounts;
+    final int[][] participants;
+    final long[][] shares;
+
+    public SyntheticWorkload(int groupSize, int expenseCount, long seed) {
+        this.groupSize = groupSize;
+        Random random = new Random(seed);
+        double[] cumulative = new double[groupSize];
+        double total = 0;
+        for (int rank = 0; rank < groupSize; rank++) {
+            total += 1 / Math.pow(rank + 1, ZIPF_EXPONENT);
+            cumulative[rank] = total;
+        }
+        payers = new int[expenseCount];
+        types = new ExpenseType[expenseCount];
+        amounts = new long[expenseCount];
+        participants = new int[expenseCount][];
+        shares = new long[expenseCount][];
+        for (int i = 0; i < expenseCount; i++) {
+            int count = 1 + random.nextInt(Math.min(groupSize, MAX_PARTICIPANTS));
+            Set<Integer> chosen = new LinkedHashSet<>();
+            while (chosen.size() < count) {
+                chosen.add(sample(cumulative, total, random));
+            }
+            participants[i] = chosen.stream().mapToInt(Integer::intValue).toArray();
+            payers[i] = random.nextInt(4) == 0 ? sample(cumulative, total, random) : participants[i][0];
+            types[i] = ExpenseType.values()[random.nextInt(ExpenseType.values().length)];
+            amounts[i] = 100 + random.nextInt(100_000);
+            if (types[i] == ExpenseType.EXACT)
+                shares[i] = partition(amounts[i], count, random);
+            else if (types[i] == ExpenseType.PERCENT)
+                shares[i] = partition(Money.BASIS_POINTS_PER_WHOLE, count, random);
+        }
+    }
+
+    public int size() {
+        return payers.length;
+    }
+
+    public List<Split> splits(int expense, User[] users) {
+        int[] members = participants[expense];
+        List<Split> splits = new ArrayList<>(members.length);
+        for (int i = 0; i < members.length; i++) {
+            User user = users[members[i]];
+            switch (types[expense]) {
+                case EXACT:
+                    splits.add(new ExactSplit(user, shares[expense][i]));
+                    break;
+                case PERCENT:
+                    splits.add(new PercentSplit(user, shares[expense][i]));
+                    break;
+                default:
+                    splits.add(new EqualSplit(user));
+            }
+        }
+        return splits;
+    }
+
+    private static int sample(double[] cumulative, double total, Random random) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+        return Math.min(index < 0 ? -index - 1 : index, cumulative.length - 1);
+    }
+
+    private static long[] partition(long total, int parts, Random random) {
+        long[] cuts = new long[parts + 1];
+        for (int i = 1; i < parts; i++) {
+            cuts[i] = (long) (random.nextDouble() * (total + 1));
+        }
+        cuts[parts] = total;
+        Arrays.sort(cuts, 1, parts);
+        long[] shares = new long[parts];
+        for (int i = 0; i < parts; i++) {
+            shares[i] = cuts[i + 1] - cuts[i];
+        }
+        return shares;
+    }
+}
+
+/*
+Throughput benchmark for ExpenseManager. There is no JMH in this build, so this is a plain
+harness in the same shape: warmup rounds that are thrown away, then measured rounds on fresh
+managers, reporting the mean. Allocation comes from the per-thread allocated-bytes counter
+and retained memory from used heap after a GC. Run with: java SplitwiseBenchmark [seconds]
+ */
+class SplitwiseBenchmark {
+    private static final int[] GROUP_SIZES = {2, 10, 100, 1_000, 10_000};
+    private static final int EXPENSES_PER_ROUND = 50_000;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+    public static void main(String[] args) throws Exception {
+        int sustainedSeconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        System.out.printf("%-8s %-8s %14s %12s %14s %14s%n", "users", "impl", "adds/s", "B/add", "showAll ms", "heap B/user");
+        for (int groupSize : GROUP_SIZES) {
+            SyntheticWorkload workload = new SyntheticWorkload(groupSize, EXPENSES_PER_ROUND, groupSize);
+            report(groupSize, "ledger", measure(workload, false));
+            report(groupSize, "baseline", measure(workload, true));
+        }
+        System.out.printf("%-9s %-20s %14s %14s%n", "sustained", "groups", "adds/s", "shows/s");
+        for (boolean shared : new boolean[]{false, true}) {
+            report(shared, "ledger", sustained(sustainedSeconds, shared, false));
+            report(shared, "baseline", sustained(sustainedSeconds, shared, true));
+        }
+    }
+
+    // {adds per second, bytes allocated per add, showBalances millis, retained heap bytes per user}
+    private static double[] measure(SyntheticWorkload workload, boolean baseline) {
+        double[] totals = new double[4];
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            System.gc();
+            long heapBefore = usedHeap();
+            // only the implementation under test is built, so its heap is not charged for the other's
+            User[] users = createUsers(workload.groupSize);
+            ExpenseManager manager = baseline ? null : new ExpenseManager();
+            BaselineBalanceSheet sheet = baseline ? new BaselineBalanceSheet() : null;
+            addUsers(users, manager, sheet);
+
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < workload.size(); i++) {
+                List<Split> splits = workload.splits(i, users);
+                String paidBy = users[workload.payers[i]].getId();
+                if (baseline)
+                    sheet.addExpense(ExpenseService.createExpense(workload.types[i], workload.amounts[i], users[workload.payers[i]], splits, null));
+                else
+                    manager.addExpense(workload.types[i], workload.amounts[i], paidBy, splits, null);
+            }
+            long elapsed = System.nanoTime() - start;
+            long allocated = allocatedBytes() - allocatedBefore;
+
+            PrintStream out = System.out;
+            System.setOut(DISCARD);
+            long showStart = System.nanoTime();
+            if (baseline)
+                sheet.showBalances();
+            else
+                manager.showBalances();
+            long showElapsed = System.nanoTime() - showStart;
+            System.setOut(out);
+
+            System.gc();
+            long retained = usedHeap() - heapBefore;
+            if (round >= WARMUP_ROUNDS) {
+                totals[0] += workload.size() * 1e9 / elapsed;
+                totals[1] += allocated / (double) workload.size();
+                totals[2] += showElapsed / 1e6;
+                totals[3] += retained / (double) workload.groupSize;
+            }
+            // keep the implementation reachable until the retained heap has been read
+            Objects.requireNonNull(baseline ? sheet : manager);
+        }
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] /= MEASURED_ROUNDS;
+        }
+        return totals;
+    }
+
+    /*
+    Every writer thread posts to its own group, or with shared == true all of them post to one
+    group, while one reader thread keeps calling showBalances over those groups. The baseline
+    sheet is not thread-safe, so each of its sheets is guarded by a single lock, the simplest
+    way the old map-of-maps could have been shared. Returns {adds per second, shows per second}.
+     */
+    private static double[] sustained(int seconds, boolean shared, boolean baseline) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int groupSize = 100;
+        int groupCount = shared ? 1 : threads;
+        User[] users = createUsers(groupSize);
+        ExpenseManager manager = baseline ? null : new ExpenseManager();
+        BaselineBalanceSheet[] sheets = new BaselineBalanceSheet[baseline ? groupCount : 0];
+        for (int g = 0; g < sheets.length; g++) {
+            sheets[g] = new BaselineBalanceSheet();
+            addUsers(users, null, sheets[g]);
+        }
+        if (manager != null)
+            addUsers(users, manager, null);
+        String[] groupIds = new String[groupCount];
+        for (int g = 0; g < groupCount; g++) {
+            groupIds[g] = shared ? ExpenseManager.DEFAULT_GROUP_ID : "bench-" + g;
+        }
+
+        LongAdder adds = new LongAdder();
+        LongAdder shows = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        List<Future<?>> workers = new ArrayList<>();
+        // silenced before the reader starts, it prints from the first show
+        PrintStream out = System.out;
+        System.setOut(DISCARD);
+        try {
+            for (int t = 0; t < threads; t++) {
+                int group = shared ? 0 : t;
+                SyntheticWorkload workload = new SyntheticWorkload(groupSize, EXPENSES_PER_ROUND, t);
+                workers.add(executor.submit(() -> {
+                    for (int i = 0; running.get(); i = (i + 1) % workload.size()) {
+                        User paidBy = users[workload.payers[i]];
+                        List<Split> splits = workload.splits(i, users);
+                        if (baseline) {
+                            Expense expense = ExpenseService.createExpense(workload.types[i], workload.amounts[i], paidBy, splits, null);
+                            synchronized (sheets[group]) {
+                                sheets[group].addExpense(expense);
+                            }
+                        } else {
+                            manager.addExpense(groupIds[group], workload.types[i], workload.amounts[i], paidBy.getId(), splits, null);
+                        }
+                        adds.increment();
+                    }
+                }));
+            }
+            workers.add(executor.submit(() -> {
+                while (running.get()) {
+                    for (int g = 0; g < groupCount; g++) {
+                        if (baseline) {
+                            synchronized (sheets[g]) {
+                                sheets[g].showBalances();
+                            }
+                        } else {
+                            manager.showBalances(groupIds[g]);
+                        }
+                    }
+                    shows.increment();
+                }
+            }));
+
+            Thread.sleep(1_000);
+            adds.reset();
+            shows.reset();
+            long start = System.nanoTime();
+            Thread.sleep(seconds * 1_000L);
+            long completedAdds = adds.sum();
+            long completedShows = shows.sum();
+            long elapsed = System.nanoTime() - start;
+            running.set(false);
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+            return new double[]{completedAdds * 1e9 / elapsed, completedShows * 1e9 / elapsed};
+        } finally {
+            running.set(false);
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+            System.setOut(out);
+        }
+    }
+
+    private static User[] createUsers(int count) {
+        User[] users = new User[count];
+        for (int i = 0; i < count; i++) {
+            users[i] = new User("u" + i, "User" + i, null, null);
+        }
+        return users;
+    }
+
+    // either side may be null, only the implementation being measured is filled
+    private static void addUsers(User[] users, ExpenseManager manager, BaselineBalanceSheet sheet) {
+        for (User user : users) {
+            if (manager != null)
+                manager.addUser(user);
+            if (sheet != null)
+                sheet.addUser(user.getId());
+        }
+    }
+
+    private static void report(boolean shared, String implementation, double[] result) {
+        System.out.printf("%-9s %-20s %14.0f %14.0f%n", implementation, shared ? "one shared group" : "one group per thread",
+                result[0], result[1]);
+    }
+
+    private static void report(int groupSize, String implementation, double[] result) {
+        System.out.printf("%-8d %-8s %14.0f %12.1f %14.2f %14.0f%n", groupSize, implementation, result[0], result[1], result[2], result[3]);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+}
+
+public class Main {
+    public static void main(String[] args) {
+
+        // an optional data directory makes expenses durable across restarts
+        ExpenseManager expenseManager = args.length > 0
+                ? new ExpenseManager(new ExpenseLog(Paths.get(args[0]), 100_000))
+                : new ExpenseManager();
+
+        expenseManager.addUser(new User("u1", "User1", "gaurav@workat.tech", "9876543210"));
+        expenseManager.addUser(new User("u2", "User2", "sagar@workat.tech", "9876543210"));
+        expenseManager.addUser(new User("u3", "User3", "hi@workat.tech", "9876543210"));
+        expenseManager.addUser(new User("u4", "User4", "mock-interviews@workat.tech", "9876543210"));
+        expenseManager.recover();
+
+        Scanner scanner = new Scanner(System.in);
+        while (scanner.hasNextLine()) {
+            String command = scanner.nextLine();
+            String[] commands = command.split(" ");
+            String commandType = commands[0];
+
+            switch (commandType) {
+                case "SHOW":
+                    if (commands.length == 1) {
+                        expenseManager.showBalances();
+                    } else if (commands.length == 2) {
+                        expenseManager.showBalance(commands[1]);
+                    } else {
+                        expenseManager.showBalanceIn(commands[1], commands[2]);
+                    }
+                    break;
+                case "SIMPLIFY":
+                    expenseManager.showSimplifiedBalances();
+                    break;
+                case "FX":
+                    try {
+                        expenseManager.currencyConverter.load(Paths.get(commands[1]));
+                    } catch (IOException e) {
+                        System.out.println("Could not load rates: " + e.getMessage());
+                    }
+                    break;
+                case "SETTLE":
+                    expenseManager.settleUp(ExpenseManager.DEFAULT_GROUP_ID, commands[1], commands[2], Money.toMinorUnits(commands[3]), null);
+                    break;
+                case "DELETE":
+                    if (!expenseManager.deleteExpense(ExpenseManager.DEFAULT_GROUP_ID, commands[1], null)) {
+                        System.out.println("No expense " + commands[1]);
+                    }
+                    break;
+                case "SUMMARY":
+                    expenseManager.showSummary(commands[1]);
+                    break;
+                case "HISTORY":
+                    expenseManager.showHistory(commands[1], commands.length > 2 ? commands[2] : null, 20);
+                    break;
+                case "IMPORT":
+                    String groupId = commands.length > 2 ? commands[2] : ExpenseManager.DEFAULT_GROUP_ID;
+                    try {
+                        System.out.println(new ExpenseImporter(expenseManager).importFile(Paths.get(commands[1]), groupId));
+                    } catch (IOException e) {
+                        System.out.println("Import failed: " + e.getMessage());
+                    }
+                    break;
+                case "EXPENSE":
+                    String paidBy = commands[1];
+                    long amount = Money.toMinorUnits(commands[2]);
+                    int noOfUsers = Integer.parseInt(commands[3]);
+                    String expenseType = commands[4 + noOfUsers];
+                    List<Split> splits = new ArrayList<>();
+                    switch (expenseType) {
+                        case "EQUAL":
+                            for (int i = 0; i < noOfUsers; i++) {
+                                splits.add(new EqualSplit(expenseManager.userMap.get(commands[4 + i])));
+                            }
+                            expenseManager.addExpense(ExpenseType.EQUAL, amount, paidBy, splits, null);
+                            break;
+                        case "EXACT":
+                            for (int i = 0; i < noOfUsers; i++) {
+                                splits.add(new ExactSplit(expenseManager.userMap.get(commands[4 + i]), Money.toMinorUnits(commands[5 + noOfUsers + i])));
+                            }
+                            expenseManager.addExpense(ExpenseType.EXACT, amount, paidBy, splits, null);
+                            break;
+                        case "PERCENT":
+                            for (int i = 0; i < noOfUsers; i++) {
+                                splits.add(new PercentSplit(expenseManager.userMap.get(commands[4 + i]), Money.toBasisPoints(commands[5 + noOfUsers + i])));
+                            }
+                            expenseManager.addExpense(ExpenseType.PERCENT, amount, paidBy, splits, null);
+                            break;
+                    }
+                    break;
+            }
+        }
+
+        try {
+            expenseManager.close();
+        } catch (IOException e) {
+            System.out.println("Could not close the expense log: " + e.getMessage());
+        }
         }
 }
\ No newline at end of file
@@ -1,7 +1,24 @@
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import static java.lang.Math.pow;
 import static java.lang.Math.sqrt;
@@ -54,13 +71,28 @@ class Trip {
     }
 }
 
+enum CabState {
+    AVAILABLE,
+    RESERVED,
+    ON_TRIP
+}
+
+/*
+isAvailable is the driver's own on/off-duty switch; state is the dispatch lifecycle
+AVAILABLE -> RESERVED -> ON_TRIP -> AVAILABLE. Every transition is a compareAndSet, so only one
+matcher can ever win the reservation of a given cab.
+ */
 class Cab {
     String id;
     String driverName;
 
-    Trip currentTrip;
-    Location currentLocation;
-    Boolean isAvailable;
+    volatile Trip currentTrip;
+    // written by the location pipeline while matching threads read it
+    volatile Location currentLocation;
+    volatile Boolean isAvailable;
+    private final AtomicReference<CabState> state = new AtomicReference<>(CabState.AVAILABLE);
+    private static final AtomicReferenceFieldUpdater<Cab, Trip> CURRENT_TRIP =
+            AtomicReferenceFieldUpdater.newUpdater(Cab.class, Trip.class, "currentTrip");
 
     public Cab(String id, String driverName) {
         this.id = id;
@@ -68,6 +100,40 @@ class Cab {
         this.isAvailable = true;
     }
 
+    public CabState getState() {
+        return state.get();
+    }
+
+    public boolean tryReserve() {
+        return state.compareAndSet(CabState.AVAILABLE, CabState.RESERVED);
+    }
+
+    public void releaseReservation() {
+        state.compareAndSet(CabState.RESERVED, CabState.AVAILABLE);
+    }
+
+    // the trip is published before ON_TRIP, so whoever sees ON_TRIP can end it
+    public void startTrip(final Trip trip) {
+        if (state.get() != CabState.RESERVED) {
+            throw new IllegalStateException("Cab " + id + " is not reserved");
+        }
+        this.currentTrip = trip;
+        if (!state.compareAndSet(CabState.RESERVED, CabState.ON_TRIP)) {
+            this.currentTrip = null;
+            throw new IllegalStateException("Cab " + id + " is not reserved");
+        }
+    }
+
+    // only one caller wins the ON_TRIP -> AVAILABLE step; the trip is cleared only if a new one
+    // has not been started on the freed cab in the meantime
+    public boolean finishTrip(final Trip trip) {
+        if (!state.compareAndSet(CabState.ON_TRIP, CabState.AVAILABLE)) {
+            return false;
+        }
+        CURRENT_TRIP.compareAndSet(this, trip, null);
+        return true;
+    }
+
     @Override
     public String toString() {
         return "Cab{" +
@@ -75,6 +141,7 @@ class Cab {
                 ", driverName='" + driverName + '\'' +
                 ", currentLocation=" + currentLocation +
                 ", isAvailable=" + isAvailable +
+                ", state=" + state.get() +
                 '}';
     }
 }
@@ -90,16 +157,158 @@ class Location {
 
 
 
+/*
+Uniform grid over the plane: a cab lives in the cell containing its location, keyed by the
+packed (cellX, cellY) pair. A radius query only reads the cells overlapping the circle's
+bounding box, and a nearest query walks outwards ring by ring until no unread cell can hold
+anything closer than what it already has. Distances are compared squared, so no sqrt.
+
+Cells are concurrent sets, so queries never lock and writers to different cells never meet.
+A move is serialised per cab, sets the cab's location and its cell under the same lock, and
+removes before it adds: a query racing it may miss that one cab for an instant but never
+sees it twice. Emptied cells are kept, so a writer can never add into a cell that was just
+unlinked.
+ */
+class CabSpatialIndex {
+
+    private final double cellSize;
+    private final Map<Long, Set<Cab>> cells = new ConcurrentHashMap<>();
+    private final Map<String, Long> cabCells = new ConcurrentHashMap<>();
+
+    public CabSpatialIndex(final double cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    public void update(final Cab cab, final Location newLocation) {
+        synchronized (cab) {
+            cab.setCurrentLocation(newLocation);
+            final Long oldCell = cabCells.get(cab.getId());
+            final long newCell = cellOf(newLocation.getX(), newLocation.getY());
+            if (oldCell != null && oldCell == newCell) {
+                return;
+            }
+            if (oldCell != null) {
+                cells.get(oldCell).remove(cab);
+            }
+            cells.computeIfAbsent(newCell, key -> ConcurrentHashMap.newKeySet()).add(cab);
+            cabCells.put(cab.getId(), newCell);
+        }
+    }
+
+    public void remove(final Cab cab) {
+        synchronized (cab) {
+            final Long oldCell = cabCells.remove(cab.getId());
+            if (oldCell != null) {
+                cells.get(oldCell).remove(cab);
+            }
+        }
+    }
+
+    public List<Cab> withinRadius(final Location center, final double radius, final Predicate<Cab> filter) {
+        final List<Cab> result = new ArrayList<>();
+        final double x = center.getX();
+        final double y = center.getY();
+        final double radiusSquared = radius * radius;
+        final long minCellX = cellCoordinate(x - radius);
+        final long maxCellX = cellCoordinate(x + radius);
+        final long minCellY = cellCoordinate(y - radius);
+        final long maxCellY = cellCoordinate(y + radius);
+        for (long cellX = minCellX; cellX <= maxCellX; cellX++) {
+            for (long cellY = minCellY; cellY <= maxCellY; cellY++) {
+                final Set<Cab> cell = cells.get(pack(cellX, cellY));
+                if (cell == null) {
+                    continue;
+                }
+                for (Cab cab : cell) {
+                    if (distanceSquared(cab.getCurrentLocation(), x, y) <= radiusSquared && filter.test(cab)) {
+                        result.add(cab);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    // closest first, at most k cabs, none further than maxDistance
+    public List<Cab> nearest(final Location center, final int k, final double maxDistance, final Predicate<Cab> filter) {
+        final double x = center.getX();
+        final double y = center.getY();
+        final double maxDistanceSquared = maxDistance * maxDistance;
+        final long centerX = cellCoordinate(x);
+        final long centerY = cellCoordinate(y);
+        final long maxRing = (long) Math.ceil(maxDistance / cellSize);
+        // furthest candidate on top, so it is the one evicted
+        final PriorityQueue<Cab> best = new PriorityQueue<>(
+                (a, b) -> Double.compare(distanceSquared(b.getCurrentLocation(), x, y), distanceSquared(a.getCurrentLocation(), x, y)));
+        for (long ring = 0; ring <= maxRing; ring++) {
+            for (long cellX = centerX - ring; cellX <= centerX + ring; cellX++) {
+                final boolean edgeColumn = cellX == centerX - ring || cellX == centerX + ring;
+                final long step = edgeColumn ? 1 : Math.max(1, 2 * ring);
+                for (long cellY = centerY - ring; cellY <= centerY + ring; cellY += step) {
+                    final Set<Cab> cell = cells.get(pack(cellX, cellY));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (Cab cab : cell) {
+                        final double distanceSquared = distanceSquared(cab.getCurrentLocation(), x, y);
+                        if (distanceSquared > maxDistanceSquared || !filter.test(cab)) {
+                            continue;
+                        }
+                        if (best.size() < k) {
+                            best.add(cab);
+                        } else if (distanceSquared < distanceSquared(best.peek().getCurrentLocation(), x, y)) {
+                            best.poll();
+                            best.add(cab);
+                        }
+                    }
+                }
+            }
+            // every cell beyond this ring is at least ring * cellSize away from the center
+            final double reached = ring * cellSize;
+            if (best.size() == k && distanceSquared(best.peek().getCurrentLocation(), x, y) <= reached * reached) {
+                break;
+            }
+        }
+        final List<Cab> result = new ArrayList<>(best);
+        result.sort((a, b) -> Double.compare(distanceSquared(a.getCurrentLocation(), x, y), distanceSquared(b.getCurrentLocation(), x, y)));
+        return result;
+    }
+
+    private long cellOf(final double x, final double y) {
+        return pack(cellCoordinate(x), cellCoordinate(y));
+    }
+
+    private long cellCoordinate(final double value) {
+        return (long) Math.floor(value / cellSize);
+    }
+
+    private static long pack(final long cellX, final long cellY) {
+        return (cellX << 32) ^ (cellY & 0xffffffffL);
+    }
+
+    private static double distanceSquared(final Location location, final double x, final double y) {
+        final double dx = location.getX() - x;
+        final double dy = location.getY() - y;
+        return dx * dx + dy * dy;
+    }
+}
+
 class CabsManager {
 
-    Map<String, Cab> cabs = new HashMap<>();
+    // cells this wide keep a trip-matching radius query within a 3x3 block of cells
+    public static final double GRID_CELL_SIZE = TripsManager.MAX_ALLOWED_TRIP_MATCHING_DISTANCE;
+
+    Map<String, Cab> cabs = new ConcurrentHashMap<>();
+    private final CabSpatialIndex spatialIndex = new CabSpatialIndex(GRID_CELL_SIZE);
 
     public void createCab( final Cab newCab) {
-        if (cabs.containsKey(newCab.getId())) {
+        if (cabs.putIfAbsent(newCab.getId(), newCab) != null) {
             throw new CabAlreadyExistsException();
         }
 
-        cabs.put(newCab.getId(), newCab);
+        if (newCab.getCurrentLocation() != null) {
+            spatialIndex.update(newCab, newCab.getCurrentLocation());
+        }
     }
 
     public Cab getCab( final String cabId) {
@@ -113,7 +322,22 @@ class CabsManager {
         if (!cabs.containsKey(cabId)) {
             throw new CabNotFoundException();
         }
-        cabs.get(cabId).setCurrentLocation(newLocation);
+        applyLocation(cabs.get(cabId), newLocation);
+    }
+
+    // pipeline path: unknown cabs are reported back instead of thrown
+    boolean applyLocation(final String cabId, final Location newLocation) {
+        final Cab cab = cabs.get(cabId);
+        if (cab == null) {
+            return false;
+        }
+        applyLocation(cab, newLocation);
+        return true;
+    }
+
+    // direct and pipeline updates meet here, the index moves location and cell under the cab's lock
+    private void applyLocation(final Cab cab, final Location newLocation) {
+        spatialIndex.update(cab, newLocation);
     }
 
     public void updateCabAvailability(
@@ -125,17 +349,199 @@ class CabsManager {
     }
 
     public List<Cab> getCabs( final Location fromPoint,final Double distance) {
-        List<Cab> result = new ArrayList<>();
-        for (Cab cab : cabs.values()) {
-            // TODO: Use epsilon comparison because of double
-            if (cab.getIsAvailable() && cab.getCurrentLocation().distance(fromPoint) <= distance) {
-                result.add(cab);
+        // TODO: Use epsilon comparison because of double
+        return spatialIndex.withinRadius(fromPoint, distance, Cab::getIsAvailable);
+    }
+
+    public List<Cab> getNearestCabs(final Location fromPoint, final int count, final Double maxDistance) {
+        return spatialIndex.nearest(fromPoint, count, maxDistance, Cab::getIsAvailable);
+    }
+}
+
+
+class LocationUpdate {
+    private final String cabId;
+    private final Location location;
+    private final long timestampMillis;
+
+    public LocationUpdate(final String cabId, final Location location, final long timestampMillis) {
+        this.cabId = cabId;
+        this.location = location;
+        this.timestampMillis = timestampMillis;
+    }
+
+    public String getCabId() {
+        return cabId;
+    }
+
+    public Location getLocation() {
+        return location;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+}
+
+/*
+Accepts GPS pings in any batch size and applies them to CabsManager in the background.
+Updates are partitioned by cab id; each partition keeps only the newest pending ping per cab
+(by device timestamp, so a late packet never rolls a cab back) and one worker thread drains
+it once per flush interval, busy or not. A cab's pings are therefore applied by exactly one
+worker, all of its pings within an interval cost one index move, and a ping is visible about
+one interval after it is submitted (or at once after flush()). Submitters never wait on the
+index. A direct updateCabLocation can still land on the same cab; the index serialises the
+two on the cab.
+ */
+class LocationIngestionPipeline {
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 100;
+
+    private final CabsManager cabsManager;
+    private final long flushIntervalNanos;
+    private final List<Map<String, LocationUpdate>> partitions = new ArrayList<>();
+    // newest timestamp applied per cab, touched only while holding its partition's monitor
+    private final List<Map<String, Long>> appliedTimestamps = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean running = true;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder applied = new LongAdder();
+    private final LongAdder unknownCabs = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public LocationIngestionPipeline(final CabsManager cabsManager, final int partitionCount, final long flushIntervalMillis) {
+        this.cabsManager = cabsManager;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        for (int i = 0; i < partitionCount; i++) {
+            final Map<String, LocationUpdate> pending = new ConcurrentHashMap<>();
+            final Map<String, Long> applied = new HashMap<>();
+            partitions.add(pending);
+            appliedTimestamps.add(applied);
+            final Thread worker = new Thread(() -> drainLoop(pending, applied), "location-ingest-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    public void submit(final LocationUpdate update) {
+        if (update == null || update.getCabId() == null || update.getLocation() == null
+                || update.getLocation().getX() == null || update.getLocation().getY() == null) {
+            throw new IllegalArgumentException("Location update needs a cab id and a location with both coordinates");
+        }
+        submitted.increment();
+        partitions.get(partitionOf(update.getCabId())).merge(update.getCabId(), update,
+                (pending, newer) -> newer.getTimestampMillis() >= pending.getTimestampMillis() ? newer : pending);
+    }
+
+    public void submitBatch(final List<LocationUpdate> batch) {
+        for (LocationUpdate update : batch) {
+            submit(update);
+        }
+    }
+
+    // applies everything pending on the calling thread and returns once it is visible
+    public void flush() {
+        for (int i = 0; i < partitions.size(); i++) {
+            final Map<String, LocationUpdate> pending = partitions.get(i);
+            synchronized (pending) {
+                drain(pending, appliedTimestamps.get(i));
             }
         }
-        return result;
     }
-}
 
+    public void shutdown() {
+        running = false;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+        flush();
+    }
+
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    public long getApplied() {
+        return applied.sum();
+    }
+
+    // submitted pings superseded by a newer one for the same cab before they were applied
+    public long getCoalesced() {
+        return submitted.sum() - applied.sum() - unknownCabs.sum() - stale.sum() - failed.sum() - pendingCount();
+    }
+
+    public long getUnknownCabs() {
+        return unknownCabs.sum();
+    }
+
+    // pings dropped because a newer one for the same cab had already been applied
+    public long getStale() {
+        return stale.sum();
+    }
+
+    // pings whose apply threw; the worker logs them and moves on to the next cab
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    private long pendingCount() {
+        long count = 0;
+        for (Map<String, LocationUpdate> pending : partitions) {
+            count += pending.size();
+        }
+        return count;
+    }
+
+    // drains on a fixed schedule so pings arriving between two drains coalesce
+    private void drainLoop(final Map<String, LocationUpdate> pending, final Map<String, Long> appliedAt) {
+        long nextDrain = System.nanoTime() + flushIntervalNanos;
+        while (running) {
+            final long wait = nextDrain - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            // after a drain that overran the interval the next one starts at once, without catch-up drains
+            nextDrain = Math.max(nextDrain + flushIntervalNanos, System.nanoTime());
+            if (!pending.isEmpty()) {
+                synchronized (pending) {
+                    drain(pending, appliedAt);
+                }
+            }
+        }
+    }
+
+    private void drain(final Map<String, LocationUpdate> pending, final Map<String, Long> appliedAt) {
+        for (String cabId : pending.keySet()) {
+            final LocationUpdate update = pending.remove(cabId);
+            if (update == null) {
+                continue;
+            }
+            final Long lastApplied = appliedAt.get(cabId);
+            try {
+                if (lastApplied != null && update.getTimestampMillis() < lastApplied) {
+                    stale.increment();
+                } else if (cabsManager.applyLocation(cabId, update.getLocation())) {
+                    appliedAt.put(cabId, update.getTimestampMillis());
+                    applied.increment();
+                } else {
+                    unknownCabs.increment();
+                }
+            } catch (RuntimeException e) {
+                // one bad ping must not take the partition's worker down with it
+                failed.increment();
+                System.err.println("Dropping location update for cab " + cabId + ": " + e);
+            }
+        }
+    }
+
+    private int partitionOf(final String cabId) {
+        return Math.floorMod(cabId.hashCode(), partitions.size());
+    }
+}
 
 class RidersManager {
     Map<String, Rider> riders = new HashMap<>();
@@ -158,7 +564,7 @@ class RidersManager {
 class TripsManager {
 
     public static final Double MAX_ALLOWED_TRIP_MATCHING_DISTANCE = 10.0;
-    private Map<String, List<Trip>> trips = new HashMap<>();
+    private Map<String, List<Trip>> trips = new ConcurrentHashMap<>();
 
     private CabsManager cabsManager;
     private RidersManager ridersManager;
@@ -184,22 +590,32 @@ class TripsManager {
                 cabsManager.getCabs(fromPoint, MAX_ALLOWED_TRIP_MATCHING_DISTANCE);
         final List<Cab> closeByAvailableCabs =
                 closeByCabs.stream()
-                        .filter(cab -> cab.getCurrentTrip() == null)
+                        .filter(cab -> cab.getState() == CabState.AVAILABLE)
                         .collect(Collectors.toList());
 
-        final Cab selectedCab =
-                cabMatchingStrategy.matchCabToRider(rider, closeByAvailableCabs, fromPoint, toPoint);
-        if (selectedCab == null) {
-            throw new NoCabsAvailableException();
+        // another rider may reserve our pick first; drop it and ask the strategy again
+        Cab selectedCab;
+        while (true) {
+            selectedCab = cabMatchingStrategy.matchCabToRider(rider, closeByAvailableCabs, fromPoint, toPoint);
+            if (selectedCab == null) {
+                throw new NoCabsAvailableException();
+            }
+            if (selectedCab.tryReserve()) {
+                break;
+            }
+            closeByAvailableCabs.remove(selectedCab);
         }
 
-        final Double price = pricingStrategy.findPrice(fromPoint, toPoint);
-        final Trip newTrip = new Trip(rider, selectedCab, price, fromPoint, toPoint);
-        if (!trips.containsKey(rider.getId())) {
-            trips.put(rider.getId(), new ArrayList<>());
+        final Trip newTrip;
+        try {
+            final Double price = pricingStrategy.findPrice(fromPoint, toPoint);
+            newTrip = new Trip(rider, selectedCab, price, fromPoint, toPoint);
+        } catch (RuntimeException e) {
+            selectedCab.releaseReservation();
+            throw e;
         }
-        trips.get(rider.getId()).add(newTrip);
-        selectedCab.setCurrentTrip(newTrip);
+        trips.computeIfAbsent(rider.getId(), riderId -> new CopyOnWriteArrayList<>()).add(newTrip);
+        selectedCab.startTrip(newTrip);
     }
 
     public List<Trip> tripHistory(final Rider rider) {
@@ -207,12 +623,12 @@ class TripsManager {
     }
 
     public void endTrip(final Cab cab) {
-        if (cab.getCurrentTrip() == null) {
+        final Trip trip = cab.getCurrentTrip();
+        if (trip == null || !cab.finishTrip(trip)) {
             throw new TripNotFoundException();
         }
 
-        cab.getCurrentTrip().endTrip();
-        cab.setCurrentTrip(null);
+        trip.endTrip();
     }
 }
 interface CabMatchingStrategy {
@@ -231,6 +647,345 @@ class DefaultCabMatchingStrategy implements CabMatchingStrategy {
     }
 }
 
+class PendingRideRequest {
+    private final Rider rider;
+    private final Location fromPoint;
+    private final List<Cab> candidateCabs;
+    private final CompletableFuture<Cab> match = new CompletableFuture<>();
+
+    public PendingRideRequest(final Rider rider, final Location fromPoint, final List<Cab> candidateCabs) {
+        this.rider = rider;
+        this.fromPoint = fromPoint;
+        this.candidateCabs = candidateCabs;
+    }
+
+    public Rider getRider() {
+        return rider;
+    }
+
+    public Location getFromPoint() {
+        return fromPoint;
+    }
+
+    public List<Cab> getCandidateCabs() {
+        return candidateCabs;
+    }
+
+    public CompletableFuture<Cab> getMatch() {
+        return match;
+    }
+}
+
+/*
+Holds each caller for up to one window, then assigns all riders waiting in a region to cabs at
+once, minimising the total pickup distance instead of handing every rider whatever is closest
+at the moment they asked. Regions are square tiles of the city solved in parallel; a rider's
+edges are its nearest candidates only, so the cost matrix stays sparse.
+
+Each region is a min-cost assignment problem. Every rider also has a private "stay unmatched"
+option priced above any chain of real pickups, so riders may outnumber cabs and the solver
+serves as many riders as it can before it looks at distance. A cab near a region border can be
+won in two regions at once; the loser's createTrip fails its reservation and simply waits for
+the next window. A region whose solve throws fails its own riders only, and a caller that hears
+nothing for MATCH_TIMEOUT_WINDOWS windows withdraws its request and is told there is no cab.
+ */
+class BatchedCabMatchingStrategy implements CabMatchingStrategy {
+
+    public static final long DEFAULT_WINDOW_MILLIS = 2000;
+    public static final double DEFAULT_REGION_SIZE = 4 * TripsManager.MAX_ALLOWED_TRIP_MATCHING_DISTANCE;
+    public static final int MAX_CANDIDATES_PER_RIDER = 8;
+    // a caller gives up after this many windows without an answer
+    public static final int MATCH_TIMEOUT_WINDOWS = 3;
+
+    private final long windowNanos;
+    private final double regionSize;
+    private final Queue<PendingRideRequest> pending = new ConcurrentLinkedQueue<>();
+    private final Thread windowThread;
+    private volatile boolean running = true;
+
+    private final LongAdder windows = new LongAdder();
+    private final LongAdder matched = new LongAdder();
+    private final LongAdder unmatched = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder failedRegions = new LongAdder();
+
+    public BatchedCabMatchingStrategy() {
+        this(DEFAULT_WINDOW_MILLIS, DEFAULT_REGION_SIZE);
+    }
+
+    public BatchedCabMatchingStrategy(final long windowMillis, final double regionSize) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.regionSize = regionSize;
+        this.windowThread = new Thread(this::windowLoop, "batched-matching");
+        this.windowThread.setDaemon(true);
+        this.windowThread.start();
+    }
+
+    @Override
+    public Cab matchCabToRider(final Rider rider, final List<Cab> candidateCabs, final Location fromPoint, final Location toPoint) {
+        if (candidateCabs.isEmpty()) {
+            return null;
+        }
+        if (fromPoint == null || fromPoint.getX() == null || fromPoint.getY() == null) {
+            throw new IllegalArgumentException("Ride request needs a pickup location");
+        }
+        final PendingRideRequest request = new PendingRideRequest(rider, fromPoint, new ArrayList<>(candidateCabs));
+        pending.add(request);
+        if (!running) {
+            solveWindow();
+        }
+        return awaitMatch(request);
+    }
+
+    // solves whatever is waiting on the calling thread instead of at the end of the window
+    public void flush() {
+        solveWindow();
+    }
+
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(windowThread);
+        solveWindow();
+    }
+
+    public long getWindows() {
+        return windows.sum();
+    }
+
+    public long getMatched() {
+        return matched.sum();
+    }
+
+    public long getUnmatched() {
+        return unmatched.sum();
+    }
+
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    public long getFailedRegions() {
+        return failedRegions.sum();
+    }
+
+    private Cab awaitMatch(final PendingRideRequest request) {
+        final CompletableFuture<Cab> match = request.getMatch();
+        try {
+            return match.get(MATCH_TIMEOUT_WINDOWS * windowNanos, TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Matching failed for rider " + request.getRider().getId(), e.getCause());
+        } catch (TimeoutException | InterruptedException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            timedOut.increment();
+            // withdraw the request; a cab its window assigned in the meantime is still taken
+            pending.remove(request);
+            match.complete(null);
+            return match.isCompletedExceptionally() ? null : match.getNow(null);
+        }
+    }
+
+    private void windowLoop() {
+        while (running) {
+            LockSupport.parkNanos(windowNanos);
+            try {
+                solveWindow();
+            } catch (RuntimeException e) {
+                System.err.println("Matching window failed: " + e);
+            }
+        }
+    }
+
+    private void solveWindow() {
+        final Map<Long, List<PendingRideRequest>> regions = new HashMap<>();
+        PendingRideRequest request;
+        while ((request = pending.poll()) != null) {
+            regions.computeIfAbsent(regionOf(request.getFromPoint()), key -> new ArrayList<>()).add(request);
+        }
+        if (regions.isEmpty()) {
+            return;
+        }
+        windows.increment();
+        regions.values().parallelStream().forEach(requests -> {
+            try {
+                solveRegion(requests);
+            } catch (RuntimeException e) {
+                // the region's riders fail now instead of waiting out their timeout
+                failedRegions.increment();
+                for (PendingRideRequest failed : requests) {
+                    failed.getMatch().completeExceptionally(e);
+                }
+            }
+        });
+    }
+
+    private void solveRegion(final List<PendingRideRequest> requests) {
+        final int riderCount = requests.size();
+        final Map<Cab, Integer> cabIndexes = new HashMap<>();
+        final List<Cab> cabs = new ArrayList<>();
+        final int[][] edges = new int[riderCount][];
+        final double[][] costs = new double[riderCount][];
+        double maxCost = 0;
+        for (int i = 0; i < riderCount; i++) {
+            final Location fromPoint = requests.get(i).getFromPoint();
+            // read each location once; the ingestion pipeline may move cabs while we sort
+            final Map<Cab, Double> distances = new HashMap<>();
+            for (Cab cab : requests.get(i).getCandidateCabs()) {
+                if (cab.getState() == CabState.AVAILABLE) {
+                    distances.put(cab, fromPoint.distance(cab.getCurrentLocation()));
+                }
+            }
+            final List<Cab> candidates = distances.keySet().stream()
+                    .sorted((a, b) -> Double.compare(distances.get(a), distances.get(b)))
+                    .limit(MAX_CANDIDATES_PER_RIDER)
+                    .collect(Collectors.toList());
+            edges[i] = new int[candidates.size()];
+            costs[i] = new double[candidates.size()];
+            for (int e = 0; e < candidates.size(); e++) {
+                final Cab cab = candidates.get(e);
+                Integer index = cabIndexes.get(cab);
+                if (index == null) {
+                    index = cabs.size();
+                    cabIndexes.put(cab, index);
+                    cabs.add(cab);
+                }
+                edges[i][e] = index;
+                costs[i][e] = distances.get(cab);
+                maxCost = Math.max(maxCost, costs[i][e]);
+            }
+        }
+
+        final int[] assignment = assign(edges, costs, cabs.size(), (maxCost + 1) * (riderCount + 1));
+        for (int i = 0; i < riderCount; i++) {
+            final Cab cab = assignment[i] < cabs.size() ? cabs.get(assignment[i]) : null;
+            if (cab == null) {
+                unmatched.increment();
+            } else {
+                matched.increment();
+            }
+            requests.get(i).getMatch().complete(cab);
+        }
+    }
+
+    /*
+    Sparse Hungarian method: riders are added one at a time, each along the shortest augmenting
+    path found by Dijkstra over reduced costs (cost - column potential), which stay non-negative
+    after every augmentation. Columns are the cabs followed by one "unmatched" column per rider
+    that only that rider can take, so every path ends and every rider gets exactly one column.
+    Work per rider is proportional to the edges reached, never to riders * cabs.
+     */
+    private static int[] assign(final int[][] edges, final double[][] costs, final int cabCount, final double unmatchedCost) {
+        final int riderCount = edges.length;
+        final int columnCount = cabCount + riderCount;
+        final double[] potentials = new double[columnCount];
+        final int[] owners = new int[columnCount];
+        final int[] assignment = new int[riderCount];
+        final double[] distances = new double[columnCount];
+        final int[] predecessors = new int[columnCount];
+        final boolean[] settled = new boolean[columnCount];
+        Arrays.fill(owners, -1);
+        Arrays.fill(distances, Double.POSITIVE_INFINITY);
+        final List<Integer> touched = new ArrayList<>();
+        final List<Integer> settledColumns = new ArrayList<>();
+        final PriorityQueue<double[]> frontier = new PriorityQueue<>((a, b) -> Double.compare(a[0], b[0]));
+
+        for (int start = 0; start < riderCount; start++) {
+            relax(start, 0, edges, costs, cabCount, unmatchedCost, potentials, distances, predecessors, settled, touched, frontier);
+            int sink = -1;
+            double sinkDistance = 0;
+            while (sink < 0) {
+                final double[] next = frontier.poll();
+                final int column = (int) next[1];
+                if (settled[column] || next[0] > distances[column]) {
+                    continue;
+                }
+                settled[column] = true;
+                settledColumns.add(column);
+                if (owners[column] < 0) {
+                    sink = column;
+                    sinkDistance = next[0];
+                    break;
+                }
+                final int rider = owners[column];
+                // the rider's reduced cost to its own column is zero, so this is its label
+                final double riderDistance = next[0] - (costOf(rider, column, edges, costs, cabCount, unmatchedCost) - potentials[column]);
+                relax(rider, riderDistance, edges, costs, cabCount, unmatchedCost, potentials, distances, predecessors, settled, touched, frontier);
+            }
+
+            for (int column : settledColumns) {
+                potentials[column] += distances[column] - sinkDistance;
+            }
+            int column = sink;
+            while (true) {
+                final int rider = predecessors[column];
+                final int previousColumn = assignment[rider];
+                owners[column] = rider;
+                assignment[rider] = column;
+                if (rider == start) {
+                    break;
+                }
+                column = previousColumn;
+            }
+
+            for (int touchedColumn : touched) {
+                distances[touchedColumn] = Double.POSITIVE_INFINITY;
+                settled[touchedColumn] = false;
+            }
+            touched.clear();
+            settledColumns.clear();
+            frontier.clear();
+        }
+        return assignment;
+    }
+
+    private static void relax(
+            final int rider,
+            final double riderDistance,
+            final int[][] edges,
+            final double[][] costs,
+            final int cabCount,
+            final double unmatchedCost,
+            final double[] potentials,
+            final double[] distances,
+            final int[] predecessors,
+            final boolean[] settled,
+            final List<Integer> touched,
+            final PriorityQueue<double[]> frontier) {
+        for (int e = 0; e <= edges[rider].length; e++) {
+            final int column = e < edges[rider].length ? edges[rider][e] : cabCount + rider;
+            final double cost = e < edges[rider].length ? costs[rider][e] : unmatchedCost;
+            final double distance = riderDistance + cost - potentials[column];
+            if (!settled[column] && distance < distances[column]) {
+                if (distances[column] == Double.POSITIVE_INFINITY) {
+                    touched.add(column);
+                }
+                distances[column] = distance;
+                predecessors[column] = rider;
+                frontier.add(new double[]{distance, column});
+            }
+        }
+    }
+
+    private static double costOf(final int rider, final int column, final int[][] edges, final double[][] costs, final int cabCount, final double unmatchedCost) {
+        if (column >= cabCount) {
+            return unmatchedCost;
+        }
+        for (int e = 0; e < edges[rider].length; e++) {
+            if (edges[rider][e] == column) {
+                return costs[rider][e];
+            }
+        }
+        throw new IllegalStateException("Rider " + rider + " has no edge to cab " + column);
+    }
+
+    private long regionOf(final Location location) {
+        final long regionX = (long) Math.floor(location.getX() / regionSize);
+        final long regionY = (long) Math.floor(location.getY() / regionSize);
+        return (regionX << 32) ^ (regionY & 0xffffffffL);
+    }
+}
+
 interface PricingStrategy {
     Double findPrice(Location fromPoint, Location toPoint);
 }